@@ -0,0 +1,65 @@
+package net.mrkzea.mockserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestParserBenchmark {
+
+
+    private final SimpleMockServer.RequestParser parser = new SimpleMockServer.RequestParser();
+
+    private byte[] get;
+    private byte[] post;
+    private byte[] chunked;
+
+
+    @Setup
+    public void setUp() {
+        String headers = "Host: localhost:10000\r\n"
+                + "User-Agent: Java/1.8.0_402\r\n"
+                + "Accept: application/json, text/plain, */*\r\n"
+                + "Accept-Encoding: gzip, deflate\r\n"
+                + "Accept-Language: en-GB,en;q=0.9\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "X-Request-Id: 5f0c2b7e-8a7d-4c4e-9a53-3d1f7b0f6e21\r\n"
+                + "Connection: keep-alive\r\n";
+        get = ("GET /api/v2/users/12345/orders?page=2&size=50 HTTP/1.1\r\n" + headers + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        String body = "{\"name\":\"benchmark\",\"items\":[1,2,3,4,5,6,7,8,9,10]}";
+        post = ("POST /api/v2/users HTTP/1.1\r\n" + headers + "Content-Type: application/json\r\nContent-Length: "
+                + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+        chunked = ("POST /api/v2/users HTTP/1.1\r\n" + headers + "Transfer-Encoding: chunked\r\n\r\n"
+                + Integer.toHexString(body.length()) + "\r\n" + body + "\r\n0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+
+    @Benchmark
+    public SimpleMockServer.SimpleMockRequest parseGet() {
+        return parser.parse(get, 0, get.length);
+    }
+
+
+    @Benchmark
+    public SimpleMockServer.SimpleMockRequest parsePost() {
+        return parser.parse(post, 0, post.length);
+    }
+
+
+    @Benchmark
+    public SimpleMockServer.SimpleMockRequest parseChunkedPost() {
+        return parser.parse(chunked, 0, chunked.length);
+    }
+
+
+    @Benchmark
+    public String parseGetAndReadHeader() {
+        return parser.parse(get, 0, get.length).getHeader("X-Request-Id");
+    }
+
+}
@@ -0,0 +1,72 @@
+package net.mrkzea.mockserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseSerializationBenchmark {
+
+
+    @Param({"128", "16384", "262144"})
+    public int bodySize;
+
+    private SimpleMockServer.SimpleMockResponse response;
+    private SimpleMockServer.WireResponse wire;
+    private OutputStream sink;
+
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        response = new SimpleMockServer.SimpleMockResponse();
+        response.setResponseUrl("/api/payload.json");
+        response.setResponseContent(body);
+        response.setMockResponseHeader("Cache-Control", "no-cache");
+        wire = response.compile();
+        sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(b);
+            }
+        };
+    }
+
+
+    @Benchmark
+    public SimpleMockServer.WireResponse compile() {
+        return response.compile();
+    }
+
+
+    @Benchmark
+    public void writeKeepAlive() throws IOException {
+        wire.writeTo(sink, true);
+    }
+
+
+    @Benchmark
+    public void writeClose() throws IOException {
+        wire.writeTo(sink, false);
+    }
+
+
+    @Benchmark
+    public Object toBuffers() {
+        return wire.toBuffers(true);
+    }
+
+}
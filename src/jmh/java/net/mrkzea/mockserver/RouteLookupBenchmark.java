@@ -0,0 +1,75 @@
+package net.mrkzea.mockserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RouteLookupBenchmark {
+
+
+    @Param({"10", "1000", "100000"})
+    public int routes;
+
+    private SimpleMockServer.RouteTable table;
+    private String exactUri;
+    private String templateUri;
+    private String queryUri;
+    private String missingUri;
+
+
+    @Setup
+    public void setUp() {
+        List<SimpleMockServer.SimpleMockResponse> responses = new ArrayList<SimpleMockServer.SimpleMockResponse>();
+        for (int i = 0; i < routes; i++) {
+            responses.add(response("/api/exact/" + i + "/items.json", null));
+            if (i % 10 == 0) {
+                responses.add(response("/api/service" + i + "/users/{id}/orders", null));
+                responses.add(response("/api/service" + i + "/search?q=*", "GET"));
+            }
+        }
+        table = new SimpleMockServer.RouteTable(responses);
+        exactUri = "/api/exact/" + (routes / 2) + "/items.json";
+        templateUri = "/api/service0/users/42/orders";
+        queryUri = "/api/service0/search?page=1&q=java";
+        missingUri = "/api/unknown/" + routes;
+    }
+
+
+    private static SimpleMockServer.SimpleMockResponse response(String url, String method) {
+        SimpleMockServer.SimpleMockResponse response = new SimpleMockServer.SimpleMockResponse();
+        response.setResponseUrl(url);
+        response.setResponseMethod(method);
+        return response;
+    }
+
+
+    @Benchmark
+    public Object exact() {
+        return table.find("GET", exactUri);
+    }
+
+
+    @Benchmark
+    public Object template() {
+        return table.find("GET", templateUri);
+    }
+
+
+    @Benchmark
+    public Object queryPredicate() {
+        return table.find("GET", queryUri);
+    }
+
+
+    @Benchmark
+    public Object miss() {
+        return table.find("GET", missingUri);
+    }
+
+}
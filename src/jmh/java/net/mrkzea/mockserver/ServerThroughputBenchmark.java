@@ -0,0 +1,124 @@
+package net.mrkzea.mockserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+// end to end over loopback, every JMH thread is one keep-alive client: run with -t 1..N,
+// -bm thrpt for ops/s, -bm sample for p99 and -prof gc for the allocation rate
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ServerThroughputBenchmark {
+
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"THREAD_POOL", "NIO"})
+        public SimpleMockServer.ExecutionMode mode;
+
+        @Param({"128", "16384"})
+        public int bodySize;
+
+        SimpleMockServer server;
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            server = new SimpleMockServer(port, 0, "net.mrkzea.mockserver.benchmark.none", mode);
+            server.setMaxRequestsPerConnection(Integer.MAX_VALUE);
+            server.setReadTimeout(60000);
+            SimpleMockServer.SimpleMockResponse response = new SimpleMockServer.SimpleMockResponse();
+            response.setResponseUrl("/bench/payload.json");
+            response.setResponseContent(new byte[bodySize]);
+            server.setMockHttpServerResponses(response);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stopServer();
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private static final byte[] REQUEST = ("GET /bench/payload.json HTTP/1.1\r\nHost: localhost\r\n"
+                + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            socket.close();
+        }
+
+        // reads one response, the head has to fit the buffer
+        int exchange() throws IOException {
+            out.write(REQUEST);
+            int read = 0;
+            int headEnd = -1;
+            while (headEnd < 0) {
+                int n = in.read(buffer, read, buffer.length - read);
+                if (n < 0) {
+                    throw new IOException("connection closed by server");
+                }
+                read += n;
+                headEnd = headEnd(read);
+            }
+            long remaining = contentLength(headEnd) - (read - headEnd);
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException("connection closed by server");
+                }
+                remaining -= n;
+            }
+            return read;
+        }
+
+        private int headEnd(int length) {
+            for (int i = 3; i < length; i++) {
+                if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private long contentLength(int headEnd) {
+            String head = new String(buffer, 0, headEnd, StandardCharsets.ISO_8859_1);
+            int start = head.indexOf("Content-Length: ") + "Content-Length: ".length();
+            return Long.parseLong(head.substring(start, head.indexOf('\r', start)));
+        }
+    }
+
+
+    @Benchmark
+    public int keepAliveRequest(Client client) throws IOException {
+        return client.exchange();
+    }
+
+}
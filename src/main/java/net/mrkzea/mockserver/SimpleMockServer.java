@@ -1,20 +1,61 @@
 package net.mrkzea.mockserver;
 
 
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
 import javax.net.ServerSocketFactory;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import org.junit.rules.MethodRule;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.Statement;
 import java.io.*;
 import java.lang.annotation.*;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 public class SimpleMockServer extends Thread {
 
+    static final String ROUTE_INDEX = "META-INF/simple-mock-server/routes.idx";
+    public static final String SCENARIO_STARTED = "Started";  // state of every scenario until it moves on
+    private static final long LINGER_MILLIS = 1000;  // between the answer to an unread request and the close
 
     @Target(ElementType.METHOD)
     @Retention(RetentionPolicy.RUNTIME)
@@ -27,43 +68,455 @@ public class SimpleMockServer extends Thread {
     @Retention(RetentionPolicy.RUNTIME)
     public @interface MockResponse {
         String url();
-        String response();
+        String response();  // classpath resource, or "file:/path/to/body" for a memory mapped file
         int statusCode() default 200;
         String contentType() default "application/json";
+        String method() default "";  // any method when empty
+        String delay() default "";   // server default when empty, see ResponseDelay
+        // any of these sends the body as Transfer-Encoding: chunked, paced on the timer
+        int chunkSize() default 0;         // bytes per chunk, 8192 when only a delay or rate is given
+        long chunkDelay() default 0;       // millis between chunks
+        long bytesPerSecond() default 0;   // rate cap, 0 for none
+        // request predicates, all given ones have to match; responses for the same url are picked by them
+        String body() default "";          // exact request body
+        String bodyPattern() default "";   // regex found in the body
+        String[] bodyJson() default {};    // "$.path[0].field=value", the value as JSON or plain text
+        String[] headers() default {};     // "Name: value", or "Name: ~regex"
+        // responses for the same url and predicates with a sequence position are served in that order, the last
+        // one repeating unless cycle is set
+        int sequence() default -1;
+        boolean cycle() default false;
+        // named state machine: answers only while the scenario is in state and then moves it to newState
+        String scenario() default "";
+        String state() default SCENARIO_STARTED;
+        String newState() default "";
+        // injected instead of the response, see ResponseFault: "5% reset", "truncate(100)", "2% trickle(16, 200)"
+        String[] faults() default {};
+        boolean compression() default true;  // gzip and deflate variants picked by Accept-Encoding
+    }
+
+
+    // what the acceptors do while setMaxConnections connections are open
+    public enum ConnectionLimitPolicy {
+        REJECT,         // answer new connections with 503 and Retry-After, then close them
+        STOP_ACCEPTING  // leave new connections in the listen backlog until a connection closes
+    }
+
+
+    public enum ExecutionMode {
+        SINGLE_THREADED,  // accept and serve on the server thread, one connection at a time
+        THREAD_POOL,      // hand each connection to a bounded pool of platform threads
+        VIRTUAL_THREADS,  // one virtual thread per connection, requires a Java 21+ runtime
+        NIO               // non-blocking selector event loops, one per core by default
     }
 
 
     public SimpleMockServer(int port, long responseDelay, String packages) {
+        this(port, responseDelay, packages, ExecutionMode.SINGLE_THREADED);
+    }
+
+
+    public SimpleMockServer(int port, long responseDelay, String packages, ExecutionMode executionMode) {
+        this(port, responseDelay, packages, executionMode, defaultPoolSize(executionMode));
+    }
+
+
+    private static int defaultPoolSize(ExecutionMode executionMode) {
+        return executionMode == ExecutionMode.NIO
+                ? Runtime.getRuntime().availableProcessors()
+                : Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+
+    // poolSize is the number of worker threads, or the number of event loops in NIO mode
+    public SimpleMockServer(int port, long responseDelay, String packages, ExecutionMode executionMode, int poolSize) {
+        this(port, responseDelay, packages, executionMode, poolSize, 1, 0, false);
+    }
+
+
+    // acceptors threads accept connections, each on its own socket bound with SO_REUSEPORT where the runtime
+    // supports it (Java 9+ on Linux and the BSDs) so the kernel spreads connections, otherwise on one shared socket
+    public SimpleMockServer(int port, long responseDelay, String packages, ExecutionMode executionMode, int poolSize,
+                            int acceptors) {
+        this(port, responseDelay, packages, executionMode, poolSize, acceptors, 0, false);
+    }
+
+
+    // backlog is the listen queue length of each acceptor socket, 0 for the platform default
+    public SimpleMockServer(int port, long responseDelay, String packages, ExecutionMode executionMode, int poolSize,
+                            int acceptors, int backlog) {
+        this(port, responseDelay, packages, executionMode, poolSize, acceptors, backlog, false);
+    }
+
+
+    // packages is null for shared servers, their routes are swapped in per test by MockServerRule
+    private SimpleMockServer(int port, long responseDelay, String packages, ExecutionMode executionMode, int poolSize,
+                             int acceptors, int backlog, boolean daemon) {
 
         if (serverStarted) {
             return;
         }
-        annotatedMethods = getMethodsWithinPackage(packages);
-
-        List<List<SimpleMockResponse>> mapped = annotatedMethods.stream().map(a -> processConfig(a.getAnnotation(SimpleMockServer.MockServerConfig.class).value())).collect(Collectors.toList());
-        List<SimpleMockResponse> simpleMockResponses = mapped.stream().flatMap(list -> list.stream()).collect(Collectors.toList());
+        List<SimpleMockResponse> simpleMockResponses = packages == null
+                ? Collections.<SimpleMockResponse>emptyList()
+                : loadIndexedResponses(packages);
+        if (simpleMockResponses == null) {
+            annotatedMethods = getMethodsWithinPackage(packages);
+            List<List<SimpleMockResponse>> mapped = annotatedMethods.stream().map(a -> processConfig(a.getAnnotation(SimpleMockServer.MockServerConfig.class).value())).collect(Collectors.toList());
+            simpleMockResponses = mapped.stream().flatMap(list -> list.stream()).collect(Collectors.toList());
+        }
         setMockHttpServerResponses(simpleMockResponses.toArray(new SimpleMockResponse[simpleMockResponses.size()]));
 
         this.responseDelay = responseDelay;
-        ServerSocketFactory serverSocketFactory = ServerSocketFactory.getDefault();
+        this.defaultDelay = ResponseDelay.fixed(responseDelay);
+        // arguments are checked and the executor is created before any port is bound
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("acceptors must be positive: " + acceptors);
+        }
+        if (poolSize < 1 && (executionMode == ExecutionMode.THREAD_POOL || executionMode == ExecutionMode.NIO)) {
+            throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+        }
+        this.connectionExecutor = createConnectionExecutor(executionMode, poolSize);
+        SocketOption<Boolean> reusePort = acceptors > 1 ? reusePortOption() : null;
+        acceptorSockets = new ServerSocket[acceptors];
         try {
-            serverSocket = serverSocketFactory.createServerSocket(port);
-        } catch (IOException e) {
-            throw new RuntimeException("Could not construct server", e);
+            if (executionMode == ExecutionMode.NIO) {
+                acceptorChannels = new ServerSocketChannel[acceptors];
+                for (int i = 0; i < acceptors; i++) {
+                    acceptorChannels[i] = i == 0 || reusePort != null ? openServerChannel(port, backlog, reusePort) : acceptorChannels[0];
+                    acceptorSockets[i] = acceptorChannels[i].socket();
+                }
+                serverChannel = acceptorChannels[0];
+                eventLoops = createEventLoops(poolSize);
+            } else {
+                for (int i = 0; i < acceptors; i++) {
+                    acceptorSockets[i] = i == 0 || reusePort != null ? openServerSocket(port, backlog, reusePort) : acceptorSockets[0];
+                }
+            }
+            serverSocket = acceptorSockets[0];
+            metrics.acceptors(acceptors);
+        } catch (IOException | RuntimeException e) {
+            // a later acceptor or the event loops failed, nothing stays bound or running
+            for (ServerSocket socket : acceptorSockets) {
+                if (socket != null) {
+                    closeQuietly(socket);
+                }
+            }
+            if (connectionExecutor != null) {
+                connectionExecutor.shutdownNow();
+            }
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException("Could not construct server", e);
         }
         this.packages = packages;
+        this.executionMode = executionMode;
+        this.resumeExecutor = connectionExecutor != null ? connectionExecutor
+                : new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1024),
+                        daemonThreadFactory("mock-server-resume-"));
+        setDaemon(daemon);
         startServer();
     }
 
 
+    // SO_REUSEPORT is a Java 9 option, null when it is missing or the platform does not support it
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            return probe.supportedOptions().contains(option) ? option : null;
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+
+    private static ServerSocketChannel openServerChannel(int port, int backlog, SocketOption<Boolean> reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (reusePort != null) {
+            channel.setOption(reusePort, true);
+        }
+        return channel.bind(new InetSocketAddress(port), backlog);
+    }
+
+
+    private static ServerSocket openServerSocket(int port, int backlog, SocketOption<Boolean> reusePort) throws IOException {
+        if (reusePort == null) {
+            return ServerSocketFactory.getDefault().createServerSocket(port, backlog);
+        }
+        ServerSocket socket = new ServerSocket();
+        try {
+            ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(socket, reusePort, true);
+        } catch (ReflectiveOperationException e) {
+            socket.close();
+            throw new IOException("Could not set SO_REUSEPORT", e);
+        }
+        socket.bind(new InetSocketAddress(port), backlog);
+        return socket;
+    }
+
+
+    private static final ConcurrentHashMap<Integer, SimpleMockServer> SHARED = new ConcurrentHashMap<Integer, SimpleMockServer>();
+
+
+    // started on first use and stopped when the JVM exits, the first caller for a port decides delay and mode
+    public static SimpleMockServer shared(int port, long responseDelay, ExecutionMode executionMode) {
+        return SHARED.computeIfAbsent(port, p -> {
+            SimpleMockServer server = new SimpleMockServer(p, responseDelay, null, executionMode, defaultPoolSize(executionMode), 1, 0, true);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stopServer, "mock-server-shutdown-" + p));
+            return server;
+        });
+    }
+
+
+    private static ExecutorService createConnectionExecutor(ExecutionMode mode, int poolSize) {
+        switch (mode) {
+            case THREAD_POOL:
+                // bounded queue, when it is full new connections are answered with a 503, see dispatch; resumed
+                // exchanges wait for room instead, see resume
+                return new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(poolSize * 64),
+                        daemonThreadFactory("mock-server-worker-"));
+            case VIRTUAL_THREADS:
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("Virtual threads are not supported by this JVM", e);
+                }
+            default:
+                return null;
+        }
+    }
+
+
+    // started only once every selector is open
+    private NioEventLoop[] createEventLoops(int count) throws IOException {
+        NioEventLoop[] loops = new NioEventLoop[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                loops[i] = new NioEventLoop(i);
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < count && loops[i] != null; i++) {
+                loops[i].selector.close();
+            }
+            throw e;
+        }
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        return loops;
+    }
+
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("mock-server-timer-"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+
     private List<SimpleMockResponse> processConfig(MockResponse[] mocks) {
         return Arrays.asList(mocks)
                 .stream()
-                .map(m -> prepareResponse(m.url(), m.contentType(), m.response(), m.statusCode()))
+                .map(m -> prepareResponse(m))
                 .collect(Collectors.toList());
     }
 
 
+    private SimpleMockResponse prepareResponse(MockResponse mock) {
+        SimpleMockResponse response = prepareResponse(mock.url(), mock.contentType(), mock.response(), mock.statusCode(), mock.method(), mock.delay());
+        response.setResponseStreaming(mock.chunkSize(), mock.chunkDelay(), mock.bytesPerSecond());
+        matchRequests(response, mock.body(), mock.bodyPattern(), Arrays.asList(mock.bodyJson()), Arrays.asList(mock.headers()));
+        if (mock.sequence() >= 0) {
+            response.setResponseSequence(mock.sequence(), mock.cycle());
+        }
+        if (!mock.scenario().isEmpty()) {
+            response.setScenario(mock.scenario(), mock.state(), mock.newState());
+        }
+        for (String fault : mock.faults()) {
+            response.addResponseFault(fault);
+        }
+        response.setResponseCompression(mock.compression());
+        return response;
+    }
+
+
+    private static void matchRequests(SimpleMockResponse response, String body, String bodyPattern, List<String> bodyJson,
+                                      List<String> headers) {
+        if (!body.isEmpty()) {
+            response.setRequestBody(body);
+        }
+        if (!bodyPattern.isEmpty()) {
+            response.setRequestBodyPattern(bodyPattern);
+        }
+        for (String spec : bodyJson) {
+            int eq = spec.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected $.path=value: " + spec);
+            }
+            response.addRequestBodyJson(spec.substring(0, eq).trim(), spec.substring(eq + 1).trim());
+        }
+        for (String spec : headers) {
+            int colon = spec.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected Name: value: " + spec);
+            }
+            String value = spec.substring(colon + 1).trim();
+            if (value.startsWith("~")) {
+                response.addRequestHeaderPattern(spec.substring(0, colon).trim(), value.substring(1));
+            } else {
+                response.addRequestHeader(spec.substring(0, colon).trim(), value);
+            }
+        }
+    }
+
+
+    private SimpleMockResponse prepareResponse(String url, String contentType, String file, int status, String method, String delay) {
+        SimpleMockResponse response = prepareResponse(url, contentType, file, status);
+        response.setResponseMethod(method);
+        if (!delay.isEmpty()) {
+            response.setResponseDelay(delay);
+        }
+        return response;
+    }
+
+
+    // routes written by RouteIndexProcessor, null when no indexed class is within packages or the index is stale so
+    // the caller scans instead
+    private List<SimpleMockResponse> loadIndexedResponses(String packages) {
+        List<SimpleMockResponse> responses = new ArrayList<SimpleMockResponse>();
+        Map<String, Set<String>> indexed = new HashMap<String, Set<String>>();
+        try {
+            Enumeration<URL> indexes = Thread.currentThread().getContextClassLoader().getResources(ROUTE_INDEX);
+            while (indexes.hasMoreElements()) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(indexes.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split("\t", -1);
+                        if (fields.length != 22 || !(packages.isEmpty() || fields[0].startsWith(packages + "."))) {
+                            continue;
+                        }
+                        Set<String> typeLines = indexed.get(fields[0]);
+                        if (typeLines == null) {
+                            indexed.put(fields[0], typeLines = new HashSet<String>());
+                        }
+                        typeLines.add(line);
+                        for (int i = 0; i < fields.length; i++) {
+                            fields[i] = RouteIndexProcessor.unescape(fields[i]);
+                        }
+                        SimpleMockResponse response = prepareResponse(fields[2], fields[5], fields[3], Integer.parseInt(fields[4]), fields[6], fields[7]);
+                        response.setResponseStreaming(Integer.parseInt(fields[8]), Long.parseLong(fields[9]), Long.parseLong(fields[10]));
+                        matchRequests(response, fields[11], fields[12], lines(fields[13]), lines(fields[14]));
+                        if (Integer.parseInt(fields[15]) >= 0) {
+                            response.setResponseSequence(Integer.parseInt(fields[15]), Boolean.parseBoolean(fields[16]));
+                        }
+                        if (!fields[17].isEmpty()) {
+                            response.setScenario(fields[17], fields[18], fields[19]);
+                        }
+                        for (String fault : lines(fields[20])) {
+                            response.addResponseFault(fault);
+                        }
+                        response.setResponseCompression(Boolean.parseBoolean(fields[21]));
+                        responses.add(response);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + ROUTE_INDEX, e);
+        }
+        return !indexed.isEmpty() && isIndexCurrent(packages, indexed) ? responses : null;
+    }
+
+
+    // an incremental or IDE compile rewrites routes.idx from the recompiled classes only, so the index is trusted just
+    // when every indexed class still declares exactly its indexed routes and no other class file in packages mentions
+    // MockServerConfig; the check loads the indexed classes only and reads the others as bytes
+    private boolean isIndexCurrent(String packages, Map<String, Set<String>> indexed) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        for (Map.Entry<String, Set<String>> type : indexed.entrySet()) {
+            Set<String> declared = new HashSet<String>();
+            try {
+                for (Method method : Class.forName(type.getKey(), false, classLoader).getDeclaredMethods()) {
+                    MockServerConfig config = method.getAnnotation(MockServerConfig.class);
+                    for (int i = 0; config != null && i < config.value().length; i++) {
+                        declared.add(RouteIndexProcessor.line(type.getKey(), method.getName(), config.value()[i]));
+                    }
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                return false;
+            }
+            if (!declared.equals(type.getValue())) {
+                return false;
+            }
+        }
+        byte[] marker = ("L" + MockServerConfig.class.getName().replace('.', '/') + ";").getBytes(StandardCharsets.ISO_8859_1);
+        try {
+            Enumeration<URL> resources = classLoader.getResources(packages.replace('.', '/'));
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                if ("file".equals(resource.getProtocol())
+                        && hasUnindexedConfig(new File(resource.getFile()), packages, indexed.keySet(), marker)) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+
+    private boolean hasUnindexedConfig(File directory, String packageName, Set<String> indexed, byte[] marker) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File file : files) {
+            String name = (packageName.isEmpty() ? "" : packageName + ".") + file.getName();
+            if (file.isDirectory()) {
+                if (hasUnindexedConfig(file, name, indexed, marker)) {
+                    return true;
+                }
+            } else if (isFileAClass(file)) {
+                name = name.substring(0, name.length() - 6);
+                // the server's own classes refer to the annotation without carrying routes
+                if (!indexed.contains(name) && !(name + "$").startsWith(SimpleMockServer.class.getName() + "$")
+                        && contains(Files.readAllBytes(file.toPath()), marker)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean contains(byte[] bytes, byte[] marker) {
+        for (int i = 0; i + marker.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < marker.length && bytes[i + j] == marker[j]) {
+                j++;
+            }
+            if (j == marker.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static List<String> lines(String field) {
+        return field.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(field.split("\n", -1));
+    }
+
+
     public synchronized void startServer() {
         if (serverStarted) {
             return;
@@ -86,413 +539,4907 @@ public class SimpleMockServer extends Thread {
     public SimpleMockResponse prepareResponse(String location, String contentType, String expectedResponseFile, int status) {
         SimpleMockResponse mockResponse = new SimpleMockResponse();
         mockResponse.setResponseContentType(contentType);
-        InputStream s = getClass().getClassLoader().getResourceAsStream(expectedResponseFile);
-        if (s == null) {
+        mockResponse.setResponseUrl(location);
+        if (expectedResponseFile.startsWith("file:")) {
+            File file = new File(expectedResponseFile.substring("file:".length()));
+            if (file.isFile()) {
+                mockResponse.setResponseFile(file);
+                mockResponse.setResponseCode(status);
+            } else {
+                mockResponse.setResponseCode(500);
+            }
+        } else if (getClass().getClassLoader().getResource(expectedResponseFile) == null) {
             mockResponse.setResponseCode(500);
         } else {
-            String content = readStream(s);
-            mockResponse.setResponseContent(content);
-            mockResponse.setResponseUrl(location);
+            mockResponse.setResponseResource(expectedResponseFile);
+            mockResponse.setResponseCode(status);
         }
-        mockResponse.setResponseCode(status);
         return mockResponse;
     }
 
 
-    public static class SimpleMockResponse {
+    // delay spec: "250", "uniform(100, 300)", "normal(200, 50)", "lognormal(200, 0.5)" (median, sigma)
+    // or "percentiles(50:100, 90:250, 99:900, 100:2000)" (percentile:millis, interpolated linearly)
+    public abstract static class ResponseDelay {
 
-        public int responseCode = 200;
-        public Map<String, String> responseHeaders = new HashMap<String, String>();
-        public byte[] responseContent = "received message".getBytes();
-        public String responseContentType = "application/json;charset=utf-8";
-        public String responseUrl;
+        public static final ResponseDelay NONE = fixed(0);
 
-        public void setMockResponseHeader(String name, String value) {
-            responseHeaders.put(name, value);
+        public abstract long nextMillis();
+
+        public static ResponseDelay fixed(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("delay must not be negative: " + millis);
+            }
+            return new ResponseDelay() {
+                public long nextMillis() {
+                    return millis;
+                }
+            };
         }
 
-        public Map<String, String> getResponseHeaders() {
-            return responseHeaders;
+        public static ResponseDelay parse(String spec) {
+            String s = spec.trim().toLowerCase();
+            int open = s.indexOf('(');
+            if (open < 0) {
+                return fixed(Long.parseLong(s.endsWith("ms") ? s.substring(0, s.length() - 2).trim() : s));
+            }
+            if (!s.endsWith(")")) {
+                throw new IllegalArgumentException("illegal delay: " + spec);
+            }
+            String name = s.substring(0, open).trim();
+            String[] args = s.substring(open + 1, s.length() - 1).split(",");
+            switch (name) {
+                case "uniform": {
+                    double min = argument(args, 0, spec);
+                    double max = argument(args, 1, spec);
+                    return new ResponseDelay() {
+                        public long nextMillis() {
+                            return Math.round(min + ThreadLocalRandom.current().nextDouble() * (max - min));
+                        }
+                    };
+                }
+                case "normal": {
+                    double mean = argument(args, 0, spec);
+                    double deviation = argument(args, 1, spec);
+                    return new ResponseDelay() {
+                        public long nextMillis() {
+                            return Math.max(0, Math.round(mean + ThreadLocalRandom.current().nextGaussian() * deviation));
+                        }
+                    };
+                }
+                case "lognormal": {
+                    double median = argument(args, 0, spec);
+                    double sigma = argument(args, 1, spec);
+                    return new ResponseDelay() {
+                        public long nextMillis() {
+                            return Math.round(median * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+                        }
+                    };
+                }
+                case "percentiles":
+                    return percentiles(args, spec);
+                default:
+                    throw new IllegalArgumentException("unknown delay distribution: " + spec);
+            }
         }
 
-        public void setResponseCode(int responseCode) {
-            this.responseCode = responseCode;
+        private static ResponseDelay percentiles(String[] args, String spec) {
+            double[] percentiles = new double[args.length + 1];
+            double[] millis = new double[args.length + 1];
+            for (int i = 0; i < args.length; i++) {
+                String[] point = args[i].split(":");
+                if (point.length != 2) {
+                    throw new IllegalArgumentException("illegal delay: " + spec);
+                }
+                percentiles[i + 1] = Double.parseDouble(point[0].trim());
+                millis[i + 1] = Double.parseDouble(point[1].trim());
+                if (percentiles[i + 1] <= percentiles[i] || percentiles[i + 1] > 100 || millis[i + 1] < millis[i]) {
+                    throw new IllegalArgumentException("percentiles must increase up to 100: " + spec);
+                }
+            }
+            millis[0] = millis[1];
+            return new ResponseDelay() {
+                public long nextMillis() {
+                    double p = ThreadLocalRandom.current().nextDouble() * percentiles[percentiles.length - 1];
+                    int i = 1;
+                    while (percentiles[i] < p) {
+                        i++;
+                    }
+                    double fraction = (p - percentiles[i - 1]) / (percentiles[i] - percentiles[i - 1]);
+                    return Math.round(millis[i - 1] + fraction * (millis[i] - millis[i - 1]));
+                }
+            };
         }
 
-        public int getResponseCode() {
-            return responseCode;
+        private static double argument(String[] args, int index, String spec) {
+            if (args.length <= index) {
+                throw new IllegalArgumentException("missing argument in delay: " + spec);
+            }
+            return Double.parseDouble(args[index].trim());
         }
+    }
 
-        public void setResponseContent(String content) {
-            responseContent = content.getBytes();
+
+    public enum FaultType {
+        RESET,         // abort the connection with an RST (SO_LINGER 0) instead of answering
+        TRUNCATE,      // announce the full Content-Length, send bytes of the body and close
+        TRICKLE,       // send the head bytes at a time, millis apart, then the rest
+        NO_RESPONSE,   // read the request and send nothing, closing after millis
+        WRONG_LENGTH   // announce bytes more than the body has, send the body and close
+    }
+
+
+    // fault spec: "[probability%] name[(args)]" like "reset", "5% truncate(100)", "2% trickle(16, 200)",
+    // "1% no-response(30000)" or "wrong-length(100)"; without a probability the fault always happens
+    public static final class ResponseFault {
+
+        public final FaultType type;
+        public final double probability;  // 0..1
+        public final long bytes;
+        public final long millis;
+
+        public ResponseFault(FaultType type, double probability, long bytes, long millis) {
+            if (probability < 0 || probability > 1 || bytes < 0 || millis < 0) {
+                throw new IllegalArgumentException("illegal fault: " + type + " " + probability + " " + bytes + " " + millis);
+            }
+            this.type = type;
+            this.probability = probability;
+            this.bytes = bytes;
+            this.millis = millis;
         }
 
-        public void setResponseContent(byte[] content) {
-            responseContent = content;
+        public static ResponseFault parse(String spec) {
+            String s = spec.trim().toLowerCase();
+            double probability = 1;
+            int percent = s.indexOf('%');
+            if (percent >= 0) {
+                probability = Double.parseDouble(s.substring(0, percent).trim()) / 100;
+                s = s.substring(percent + 1).trim();
+            }
+            int open = s.indexOf('(');
+            String[] args = new String[0];
+            if (open >= 0) {
+                if (!s.endsWith(")")) {
+                    throw new IllegalArgumentException("illegal fault: " + spec);
+                }
+                args = s.substring(open + 1, s.length() - 1).split(",");
+                s = s.substring(0, open).trim();
+            }
+            switch (s) {
+                case "reset":
+                    return new ResponseFault(FaultType.RESET, probability, 0, 0);
+                case "truncate":
+                    return new ResponseFault(FaultType.TRUNCATE, probability, argument(args, 0, 0), 0);
+                case "trickle":
+                    return new ResponseFault(FaultType.TRICKLE, probability, Math.max(1, argument(args, 0, 1)), argument(args, 1, 100));
+                case "no-response":
+                    return new ResponseFault(FaultType.NO_RESPONSE, probability, 0, argument(args, 0, 60000));
+                case "wrong-length":
+                    return new ResponseFault(FaultType.WRONG_LENGTH, probability, argument(args, 0, 1), 0);
+                default:
+                    throw new IllegalArgumentException("unknown fault: " + spec);
+            }
         }
 
+        private static long argument(String[] args, int index, long fallback) {
+            if (args.length <= index || args[index].trim().isEmpty()) {
+                return fallback;
+            }
+            String arg = args[index].trim();
+            return Long.parseLong(arg.endsWith("ms") ? arg.substring(0, arg.length() - 2).trim() : arg);
+        }
 
-        public byte[] getResponseContent() {
-            return responseContent;
+        // one draw over the cumulative probabilities, null when the response goes out as registered
+        static ResponseFault pick(ResponseFault[] faults) {
+            double draw = ThreadLocalRandom.current().nextDouble();
+            for (ResponseFault fault : faults) {
+                draw -= fault.probability;
+                if (draw < 0) {
+                    return fault;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + probability + " " + bytes + " " + millis;
+        }
+    }
+
+
+    public enum Phase {
+        PARSE,  // parsing a request once its bytes are buffered
+        ROUTE,  // looking up the response
+        DELAY,  // simulated latency, from parking the exchange until it resumes
+        WRITE   // writing the response to the socket
+    }
+
+
+    // log-linear buckets (8 per power of two, ~12% precision) updated without locks
+    public static final class LatencyHistogram {
+
+        private static final int SUB_BUCKETS = 8;
+        private static final int LINEAR = 2 * SUB_BUCKETS;
+        private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry, another thread raised the maximum
+            }
+        }
+
+        private static int bucket(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+            long sub = (bucket - LINEAR) % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        public double getMeanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        // upper bound of the bucket holding the given percentile, capped by the recorded maximum
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+    }
+
+
+    public static final class ServerMetrics {
+
+        static final String UNMATCHED = "(unmatched)";
+        static final String REJECTED = "(rejected)";  // route of 503, 413 and 431 answers from admission control
+        static final String ADMIN = "(admin)";        // route of the admin endpoint, left out of the counts
+
+        private final ConcurrentHashMap<String, LongAdder> routeCounts = new ConcurrentHashMap<String, LongAdder>();
+        private final LongAdder[] statusCounts = new LongAdder[600];
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Phase.values().length];
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder activeConnections = new LongAdder();
+        private final LongAdder totalConnections = new LongAdder();
+        private LongAdder[] acceptedConnections = new LongAdder[0];
+        private final LongAdder rejectedConnections = new LongAdder();
+        private final LongAdder shedRequests = new LongAdder();
+        private final LongAdder oversizedRequests = new LongAdder();
+        private final LongAdder[] faultCounts = new LongAdder[FaultType.values().length];
+
+        ServerMetrics() {
+            for (int i = 0; i < statusCounts.length; i++) {
+                statusCounts[i] = new LongAdder();
+            }
+            for (int i = 0; i < faultCounts.length; i++) {
+                faultCounts[i] = new LongAdder();
+            }
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        void recordResponse(String route, int status) {
+            if (ADMIN.equals(route)) {
+                return;
+            }
+            requests.increment();
+            LongAdder counter = routeCounts.get(route);
+            if (counter == null) {
+                counter = routeCounts.computeIfAbsent(route, k -> new LongAdder());
+            }
+            counter.increment();
+            if (status >= 0 && status < statusCounts.length) {
+                statusCounts[status].increment();
+            }
+        }
+
+        void record(Phase phase, long nanos) {
+            latencies[phase.ordinal()].record(nanos);
+        }
+
+        void bytesIn(long bytes) {
+            bytesIn.add(bytes);
+        }
+
+        void bytesOut(long bytes) {
+            bytesOut.add(bytes);
+        }
+
+        void connectionOpened() {
+            activeConnections.increment();
+            totalConnections.increment();
+        }
+
+        void connectionClosed() {
+            activeConnections.decrement();
+        }
+
+        void acceptors(int count) {
+            acceptedConnections = new LongAdder[count];
+            for (int i = 0; i < count; i++) {
+                acceptedConnections[i] = new LongAdder();
+            }
+        }
+
+        void connectionAccepted(int acceptor) {
+            acceptedConnections[acceptor].increment();
+        }
+
+        void connectionRejected() {
+            rejectedConnections.increment();
+        }
+
+        void requestShed() {
+            shedRequests.increment();
+        }
+
+        void requestTooLarge() {
+            oversizedRequests.increment();
+        }
+
+        void faultInjected(FaultType type) {
+            faultCounts[type.ordinal()].increment();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getRequests(String route) {
+            LongAdder counter = routeCounts.get(route);
+            return counter == null ? 0 : counter.sum();
+        }
+
+        // keyed like getMockHttpServerResponses, unmatched requests under "(unmatched)"
+        public Map<String, Long> getRouteCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            routeCounts.forEach((route, counter) -> counts.put(route, counter.sum()));
+            return counts;
+        }
+
+        public Map<Integer, Long> getStatusCounts() {
+            Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+            for (int i = 0; i < statusCounts.length; i++) {
+                long count = statusCounts[i].sum();
+                if (count > 0) {
+                    counts.put(i, count);
+                }
+            }
+            return counts;
+        }
+
+        public LatencyHistogram getLatency(Phase phase) {
+            return latencies[phase.ordinal()];
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getActiveConnections() {
+            return activeConnections.sum();
+        }
+
+        public long getTotalConnections() {
+            return totalConnections.sum();
+        }
+
+        // connections accepted by each acceptor thread
+        public long[] getAcceptedConnections() {
+            long[] counts = new long[acceptedConnections.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = acceptedConnections[i].sum();
+            }
+            return counts;
+        }
+
+        // connections answered with 503 because setMaxConnections were open
+        public long getRejectedConnections() {
+            return rejectedConnections.sum();
+        }
+
+        // requests answered with 503 because setMaxInFlightRequests were being served
+        public long getShedRequests() {
+            return shedRequests.sum();
+        }
+
+        // requests answered with 431 or 413
+        public long getOversizedRequests() {
+            return oversizedRequests.sum();
+        }
+
+        // responses replaced by a fault of this type
+        public long getInjectedFaults(FaultType type) {
+            return faultCounts[type.ordinal()].sum();
+        }
+
+        // counters and histograms only, active connections stay as they are
+        public void reset() {
+            routeCounts.clear();
+            for (LongAdder counter : statusCounts) {
+                counter.reset();
+            }
+            for (LatencyHistogram histogram : latencies) {
+                histogram.reset();
+            }
+            requests.reset();
+            bytesIn.reset();
+            bytesOut.reset();
+            totalConnections.reset();
+            for (LongAdder counter : acceptedConnections) {
+                counter.reset();
+            }
+            rejectedConnections.reset();
+            shedRequests.reset();
+            oversizedRequests.reset();
+            for (LongAdder counter : faultCounts) {
+                counter.reset();
+            }
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder(512);
+            json.append("{\"requests\":").append(getRequests())
+                    .append(",\"activeConnections\":").append(getActiveConnections())
+                    .append(",\"totalConnections\":").append(getTotalConnections())
+                    .append(",\"acceptedConnections\":").append(Arrays.toString(getAcceptedConnections()).replace(" ", ""))
+                    .append(",\"rejectedConnections\":").append(getRejectedConnections())
+                    .append(",\"shedRequests\":").append(getShedRequests())
+                    .append(",\"oversizedRequests\":").append(getOversizedRequests())
+                    .append(",\"bytesIn\":").append(getBytesIn())
+                    .append(",\"bytesOut\":").append(getBytesOut())
+                    .append(",\"routes\":{");
+            String separator = "";
+            for (Map.Entry<String, Long> route : getRouteCounts().entrySet()) {
+                json.append(separator).append('"').append(jsonEscape(route.getKey())).append("\":").append(route.getValue());
+                separator = ",";
+            }
+            json.append("},\"statuses\":{");
+            separator = "";
+            for (Map.Entry<Integer, Long> status : getStatusCounts().entrySet()) {
+                json.append(separator).append('"').append(status.getKey()).append("\":").append(status.getValue());
+                separator = ",";
+            }
+            json.append("},\"faults\":{");
+            separator = "";
+            for (FaultType type : FaultType.values()) {
+                json.append(separator).append('"').append(type.name().toLowerCase()).append("\":").append(getInjectedFaults(type));
+                separator = ",";
+            }
+            json.append("},\"latencyMicros\":{");
+            separator = "";
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = getLatency(phase);
+                json.append(separator).append('"').append(phase.name().toLowerCase()).append("\":{")
+                        .append("\"count\":").append(histogram.getCount())
+                        .append(",\"mean\":").append(Math.round(histogram.getMeanNanos() / 1000))
+                        .append(",\"p50\":").append(histogram.getPercentileNanos(50) / 1000)
+                        .append(",\"p90\":").append(histogram.getPercentileNanos(90) / 1000)
+                        .append(",\"p99\":").append(histogram.getPercentileNanos(99) / 1000)
+                        .append(",\"p999\":").append(histogram.getPercentileNanos(99.9) / 1000)
+                        .append(",\"max\":").append(histogram.getMaxNanos() / 1000)
+                        .append('}');
+                separator = ",";
+            }
+            return json.append("}}").toString();
+        }
+
+        static String jsonEscape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+    }
+
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,    // overwrite the oldest entries
+        DROP_NEWEST,    // keep the first entries, count the rest as dropped
+        SPILL_TO_FILE   // overwrite the oldest entries after appending them to a spill file
+    }
+
+
+    public static final class JournalEntry {
+
+        private final long sequence;
+        private final SimpleMockRequest request;
+        private final String route;
+        private final int status;
+        private final long bodyLength;
+        private final boolean bodyRetained;
+
+        JournalEntry(long sequence, SimpleMockRequest request, String route, int status, long bodyLength, boolean bodyRetained) {
+            this.sequence = sequence;
+            this.request = request;
+            this.route = route;
+            this.status = status;
+            this.bodyLength = bodyLength;
+            this.bodyRetained = bodyRetained;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        // the body is empty when it did not fit the journal's memory budget, see isBodyRetained
+        public SimpleMockRequest getRequest() {
+            return request;
+        }
+
+        public String getMethod() {
+            return request.getMethod();
+        }
+
+        public String getUrl() {
+            return request.getUrl();
+        }
+
+        public String getRoute() {
+            return route;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getBodyLength() {
+            return bodyLength;
+        }
+
+        public boolean isBodyRetained() {
+            return bodyRetained;
+        }
+
+        public long getReceivedAt() {
+            return request.getReceivedAt();
+        }
+    }
+
+
+    // fixed size ring of recorded exchanges, writers never lock
+    public static final class RequestJournal {
+
+        private final int capacity;
+        private final int mask;
+        private final long memoryBudget;
+        private final OverflowPolicy policy;
+        private final AtomicReferenceArray<JournalEntry> ring;
+        private final AtomicLong next = new AtomicLong();
+        private volatile long first;  // sequence of the oldest entry that is still visible
+        private final AtomicLong retainedBytes = new AtomicLong();
+        private final LongAdder dropped = new LongAdder();
+        private final ConcurrentHashMap<String, LongAdder> routeCounts = new ConcurrentHashMap<String, LongAdder>();
+        private final ConcurrentHashMap<String, LongAdder> methodCounts = new ConcurrentHashMap<String, LongAdder>();
+        // visible entries per route and per method, so a lookup costs its matches instead of a pass over the ring
+        private final ConcurrentHashMap<String, Queue<JournalEntry>> byRoute = new ConcurrentHashMap<String, Queue<JournalEntry>>();
+        private final ConcurrentHashMap<String, Queue<JournalEntry>> byMethod = new ConcurrentHashMap<String, Queue<JournalEntry>>();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final Object monitor = new Object();
+        private final SpillWriter spillWriter;
+
+        public RequestJournal(int capacity, long memoryBudget, OverflowPolicy policy, File spillFile) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be positive: " + capacity);
+            }
+            int size = Integer.highestOneBit(capacity);
+            this.capacity = size < capacity ? size << 1 : size;
+            this.mask = this.capacity - 1;
+            this.memoryBudget = memoryBudget;
+            this.policy = policy;
+            this.ring = new AtomicReferenceArray<JournalEntry>(this.capacity);
+            if (policy == OverflowPolicy.SPILL_TO_FILE) {
+                if (spillFile == null) {
+                    throw new IllegalArgumentException("SPILL_TO_FILE needs a spill file");
+                }
+                spillWriter = new SpillWriter(spillFile);
+                spillWriter.start();
+            } else {
+                spillWriter = null;
+            }
+        }
+
+        void record(SimpleMockRequest request, String route, int status) {
+            long sequence;
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                do {
+                    sequence = next.get();
+                    if (sequence - first >= capacity) {
+                        dropped.increment();
+                        count(route, request.getMethod());
+                        request.deleteSpilledContent();
+                        return;
+                    }
+                } while (!next.compareAndSet(sequence, sequence + 1));
+            } else {
+                sequence = next.getAndIncrement();
+            }
+            // spilled bodies stay on disk and cost the budget nothing
+            int heapBytes = request.contentLength();
+            boolean retained = heapBytes == 0 || reserve(heapBytes);
+            JournalEntry entry = new JournalEntry(sequence, retained ? request : request.withoutContent(),
+                    route, status, request.getContentLength(), retained);
+            JournalEntry previous = ring.getAndSet((int) (sequence & mask), entry);
+            index(byRoute, route).add(entry);
+            index(byMethod, request.getMethod()).add(entry);
+            if (previous != null) {
+                // usually the head of its queues, entries indexed late are pruned by the lookups
+                unindex(byRoute, previous.getRoute(), previous);
+                unindex(byMethod, previous.getMethod(), previous);
+                release(previous);
+                if (spillWriter != null) {
+                    spillWriter.add(previous);  // deletes the body file once it is copied
+                } else {
+                    dropped.increment();
+                    previous.getRequest().deleteSpilledContent();
+                }
+            }
+            count(route, request.getMethod());
+            if (waiters.get() > 0) {
+                synchronized (monitor) {
+                    monitor.notifyAll();
+                }
+            }
+        }
+
+        private void count(String route, String method) {
+            counter(routeCounts, route).increment();
+            counter(methodCounts, method).increment();
+        }
+
+        private static LongAdder counter(ConcurrentHashMap<String, LongAdder> counts, String key) {
+            LongAdder counter = counts.get(key);
+            return counter != null ? counter : counts.computeIfAbsent(key, k -> new LongAdder());
+        }
+
+        private static Queue<JournalEntry> index(ConcurrentHashMap<String, Queue<JournalEntry>> index, String key) {
+            Queue<JournalEntry> entries = index.get(key);
+            return entries != null ? entries : index.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<JournalEntry>());
+        }
+
+        private static void unindex(ConcurrentHashMap<String, Queue<JournalEntry>> index, String key, JournalEntry entry) {
+            Queue<JournalEntry> entries = index.get(key);
+            if (entries != null) {
+                entries.remove(entry);
+            }
+        }
+
+        // oldest first; an entry is indexed after it is in the ring, so one that is no longer there was overwritten
+        private List<JournalEntry> indexed(ConcurrentHashMap<String, Queue<JournalEntry>> index, String key) {
+            List<JournalEntry> found = new ArrayList<JournalEntry>();
+            Queue<JournalEntry> entries = index.get(key);
+            if (entries == null) {
+                return found;
+            }
+            for (Iterator<JournalEntry> it = entries.iterator(); it.hasNext(); ) {
+                JournalEntry candidate = it.next();
+                if (candidate.getSequence() >= first && entry(candidate.getSequence()) == candidate) {
+                    found.add(candidate);
+                } else {
+                    it.remove();
+                }
+            }
+            found.sort(Comparator.comparingLong(JournalEntry::getSequence));
+            return found;
+        }
+
+        private boolean reserve(int bytes) {
+            long current;
+            do {
+                current = retainedBytes.get();
+                if (current + bytes > memoryBudget) {
+                    return false;
+                }
+            } while (!retainedBytes.compareAndSet(current, current + bytes));
+            return true;
+        }
+
+        private void release(JournalEntry entry) {
+            if (entry.isBodyRetained() && entry.getRequest().contentLength() > 0) {
+                retainedBytes.addAndGet(-entry.getRequest().contentLength());
+            }
+        }
+
+        private JournalEntry entry(long sequence) {
+            JournalEntry entry = ring.get((int) (sequence & mask));
+            return (entry != null && entry.getSequence() == sequence) ? entry : null;
+        }
+
+        // oldest first, entries still being written are skipped
+        public List<JournalEntry> getEntries() {
+            long end = next.get();
+            List<JournalEntry> entries = new ArrayList<JournalEntry>();
+            for (long sequence = Math.max(first, end - capacity); sequence < end; sequence++) {
+                JournalEntry entry = entry(sequence);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        public List<JournalEntry> find(java.util.function.Predicate<JournalEntry> matcher) {
+            return getEntries().stream().filter(matcher).collect(Collectors.toList());
+        }
+
+        public List<JournalEntry> findByRoute(String route) {
+            return indexed(byRoute, route);
+        }
+
+        public List<JournalEntry> findByMethod(String method) {
+            return indexed(byMethod, method);
+        }
+
+        // all requests recorded for the route since the last clear, including overwritten and dropped ones
+        public long countByRoute(String route) {
+            LongAdder counter = routeCounts.get(route);
+            return counter == null ? 0 : counter.sum();
+        }
+
+        public long countByMethod(String method) {
+            LongAdder counter = methodCounts.get(method);
+            return counter == null ? 0 : counter.sum();
+        }
+
+        public long getRecorded() {
+            return next.get();
+        }
+
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        public long getRetainedBytes() {
+            return retainedBytes.get();
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        // waits until count matching entries arrived, counting the visible ones first; entries overwritten
+        // before this thread saw them are not counted
+        public boolean await(java.util.function.Predicate<JournalEntry> matcher, int count, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            long cursor = Math.max(first, next.get() - capacity);
+            int matched = 0;
+            waiters.incrementAndGet();
+            try {
+                synchronized (monitor) {
+                    while (true) {
+                        long end = next.get();
+                        cursor = Math.max(cursor, end - capacity);
+                        for (; cursor < end; cursor++) {
+                            JournalEntry entry = ring.get((int) (cursor & mask));
+                            if (entry == null || entry.getSequence() < cursor) {
+                                break;  // reserved but not written yet
+                            }
+                            if (entry.getSequence() == cursor && matcher.test(entry)) {
+                                matched++;
+                            }
+                        }
+                        if (matched >= count) {
+                            return true;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+                    }
+                }
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        public boolean awaitRoute(String route, int count, long timeout, TimeUnit unit) throws InterruptedException {
+            return await(e -> route.equals(e.getRoute()), count, timeout, unit);
+        }
+
+        public void clear() {
+            first = next.get();
+            for (int i = 0; i < capacity; i++) {
+                JournalEntry entry = ring.getAndSet(i, null);
+                if (entry != null) {
+                    release(entry);
+                    entry.getRequest().deleteSpilledContent();
+                }
+            }
+            routeCounts.clear();
+            methodCounts.clear();
+            byRoute.clear();
+            byMethod.clear();
+            dropped.reset();
+        }
+
+        void close() {
+            if (spillWriter != null) {
+                spillWriter.shutdown();
+            }
+        }
+    }
+
+
+    // appends overwritten journal entries to a file as tab separated lines, bodies and headers base64 encoded
+    private static final class SpillWriter extends Thread {
+
+        private final File file;
+        private final Queue<JournalEntry> queue = new ConcurrentLinkedQueue<JournalEntry>();
+        private volatile boolean running = true;
+
+        SpillWriter(File file) {
+            super("mock-server-journal-spill");
+            setDaemon(true);
+            this.file = file;
+        }
+
+        void add(JournalEntry entry) {
+            queue.add(entry);
+            LockSupport.unpark(this);
+        }
+
+        void shutdown() {
+            running = false;
+            LockSupport.unpark(this);
+        }
+
+        public void run() {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))) {
+                Base64.Encoder base64 = Base64.getEncoder();
+                byte[] copy = new byte[8192];
+                while (running || !queue.isEmpty()) {
+                    JournalEntry entry = queue.poll();
+                    if (entry == null) {
+                        out.flush();
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                        continue;
+                    }
+                    SimpleMockRequest request = entry.getRequest();
+                    out.write((entry.getSequence() + "\t" + request.getReceivedAt() + "\t" + request.getMethod() + "\t"
+                            + request.getUrl() + "\t" + entry.getRoute() + "\t" + entry.getStatus() + "\t"
+                            + entry.getBodyLength() + "\t" + base64.encodeToString(request.rawHead()) + "\t")
+                            .getBytes(StandardCharsets.UTF_8));
+                    // the body is streamed, a spilled one is never loaded whole
+                    OutputStream body = base64.wrap(new FilterOutputStream(out) {
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                        }
+
+                        public void close() {
+                        }
+                    });
+                    try (InputStream in = request.openContent()) {
+                        for (int n; (n = in.read(copy)) > 0; ) {
+                            body.write(copy, 0, n);
+                        }
+                    }
+                    body.close();
+                    out.write('\n');
+                    request.deleteSpilledContent();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    // requests as tab separated lines: time millis, method, url, status, route, request body bytes; request
+    // threads only claim a slot in a bounded ring and never block, entries that find it full are dropped
+    public static final class AccessLog extends Thread {
+
+        private final File file;
+        private final int mask;
+        private final double sampleRate;
+        private final long maxFileBytes;
+        private final int maxFiles;
+        private final AtomicReferenceArray<String[]> ring;
+        private final AtomicLong tail = new AtomicLong();  // next slot to claim
+        private volatile long head;                        // next slot to write, only moved by this thread
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder written = new LongAdder();
+        private volatile boolean running = true;
+
+        // sampleRate 0..1 of the requests, the file is rotated to file.1 .. file.maxFiles past maxFileBytes
+        public AccessLog(File file, int capacity, double sampleRate, long maxFileBytes, int maxFiles) {
+            super("mock-server-access-log");
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be positive: " + capacity);
+            }
+            setDaemon(true);
+            int size = Integer.highestOneBit(capacity);
+            size = size < capacity ? size << 1 : size;
+            this.file = file;
+            this.mask = size - 1;
+            this.sampleRate = sampleRate;
+            this.maxFileBytes = maxFileBytes;
+            this.maxFiles = maxFiles;
+            this.ring = new AtomicReferenceArray<String[]>(size);
+        }
+
+        void add(SimpleMockRequest request, String route, int status) {
+            if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                return;
+            }
+            long sequence;
+            do {
+                sequence = tail.get();
+                if (sequence - head > mask) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!tail.compareAndSet(sequence, sequence + 1));
+            ring.lazySet((int) (sequence & mask), new String[]{String.valueOf(request.getReceivedAt()), request.getMethod(),
+                    request.getUrl(), String.valueOf(status), route, String.valueOf(request.getContentLength())});
+        }
+
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        public long getWritten() {
+            return written.sum();
+        }
+
+        // stops after writing what is in the ring
+        public void shutdown() {
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            OutputStream out = null;
+            try {
+                out = open();
+                long size = file.length();
+                while (running || head != tail.get()) {
+                    int slot = (int) (head & mask);
+                    String[] entry = ring.get(slot);
+                    if (entry == null) {
+                        // empty, or claimed and not filled yet
+                        out.flush();
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(50));
+                        continue;
+                    }
+                    ring.set(slot, null);
+                    head = head + 1;
+                    // encoded here so the rotation size counts bytes, not chars
+                    byte[] line = (String.join("\t", entry) + "\n").getBytes(StandardCharsets.UTF_8);
+                    out.write(line);
+                    written.increment();
+                    size += line.length;
+                    if (maxFileBytes > 0 && size >= maxFileBytes) {
+                        out.close();
+                        rotate();
+                        out = open();
+                        size = 0;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        private OutputStream open() throws IOException {
+            return new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        }
+
+        private void rotate() {
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File older = new File(file.getPath() + "." + i);
+                if (older.exists()) {
+                    older.renameTo(new File(file.getPath() + "." + (i + 1)));
+                }
+            }
+            File first = new File(file.getPath() + ".1");
+            first.delete();
+            if (maxFiles < 1 || !file.renameTo(first)) {
+                file.delete();
+            }
+        }
+    }
+
+
+    // writes every @MockServerConfig route to ROUTE_INDEX at compile time so the server does not have to scan
+    // the classpath, registered in META-INF/services; line format is class \t method \t url \t response
+    // \t statusCode \t contentType \t httpMethod \t delay \t chunkSize \t chunkDelay \t bytesPerSecond \t body
+    // \t bodyPattern \t bodyJson \t headers \t sequence \t cycle \t scenario \t state \t newState \t faults
+    // \t compression, arrays joined by line breaks and every field escaped
+    @SupportedAnnotationTypes("net.mrkzea.mockserver.SimpleMockServer.MockServerConfig")
+    public static class RouteIndexProcessor extends AbstractProcessor {
+
+        private final Set<String> lines = new TreeSet<String>();
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+            for (Element element : round.getElementsAnnotatedWith(MockServerConfig.class)) {
+                String type = processingEnv.getElementUtils().getBinaryName((TypeElement) element.getEnclosingElement()).toString();
+                for (MockResponse mock : element.getAnnotation(MockServerConfig.class).value()) {
+                    lines.add(line(type, element.getSimpleName().toString(), mock));
+                }
+            }
+            if (round.processingOver() && !lines.isEmpty()) {
+                try (Writer out = new OutputStreamWriter(processingEnv.getFiler()
+                        .createResource(StandardLocation.CLASS_OUTPUT, "", ROUTE_INDEX).openOutputStream(), StandardCharsets.UTF_8)) {
+                    for (String line : lines) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + ROUTE_INDEX + ": " + e);
+                }
+            }
+            return false;
+        }
+
+        static String line(String type, String method, MockResponse mock) {
+            String[] fields = {type, method, mock.url(), mock.response(),
+                    String.valueOf(mock.statusCode()), mock.contentType(), mock.method(), mock.delay(),
+                    String.valueOf(mock.chunkSize()), String.valueOf(mock.chunkDelay()), String.valueOf(mock.bytesPerSecond()),
+                    mock.body(), mock.bodyPattern(), String.join("\n", mock.bodyJson()), String.join("\n", mock.headers()),
+                    String.valueOf(mock.sequence()), String.valueOf(mock.cycle()), mock.scenario(), mock.state(), mock.newState(),
+                    String.join("\n", mock.faults()), String.valueOf(mock.compression())};
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = escape(fields[i]);
+            }
+            return String.join("\t", fields);
+        }
+
+        static String escape(String field) {
+            return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        static String unescape(String field) {
+            if (field.indexOf('\\') < 0) {
+                return field;
+            }
+            StringBuilder out = new StringBuilder(field.length());
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '\\' && i + 1 < field.length()) {
+                    c = field.charAt(++i);
+                    c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+                }
+                out.append(c);
+            }
+            return out.toString();
+        }
+    }
+
+
+    // starts one shared server per port and JVM and gives every test method a route table built from its own
+    // @MockServerConfig, swapped in before the test and cleared after it:
+    // @Rule public SimpleMockServer.MockServerRule mockServer = new SimpleMockServer.MockServerRule(12345);
+    public static class MockServerRule implements MethodRule {
+
+        private final int port;
+        private final long responseDelay;
+        private final ExecutionMode executionMode;
+        private volatile SimpleMockServer server;
+
+        public MockServerRule(int port) {
+            this(port, 0, ExecutionMode.SINGLE_THREADED);
+        }
+
+        public MockServerRule(int port, long responseDelay, ExecutionMode executionMode) {
+            this.port = port;
+            this.responseDelay = responseDelay;
+            this.executionMode = executionMode;
+        }
+
+        @Override
+        public Statement apply(final Statement base, final FrameworkMethod method, Object target) {
+            return new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    SimpleMockServer shared = shared(port, responseDelay, executionMode);
+                    RouteTable snapshot = routesFor(shared, method.getMethod());
+                    shared.clearRequests();
+                    synchronized (shared) {
+                        shared.routes = snapshot;
+                    }
+                    server = shared;
+                    try {
+                        base.evaluate();
+                    } finally {
+                        shared.clearResponses();
+                    }
+                }
+            };
+        }
+
+        public SimpleMockServer getServer() {
+            return server;
+        }
+
+        private static RouteTable routesFor(SimpleMockServer server, Method method) {
+            MockServerConfig config = method.getAnnotation(MockServerConfig.class);
+            if (config == null) {
+                return RouteTable.EMPTY;
+            }
+            List<SimpleMockResponse> responses = server.processConfig(config.value());
+            responses.forEach(SimpleMockResponse::precompile);
+            return new RouteTable(responses);
+        }
+    }
+
+
+    public static class SimpleMockResponse {
+
+        public int responseCode = 200;
+        public Map<String, String> responseHeaders = new HashMap<String, String>();
+        public byte[] responseContent = "received message".getBytes();
+        public String responseContentType = "application/json;charset=utf-8";
+        public String responseUrl;
+        public String responseMethod;
+        public ResponseDelay responseDelay;  // server default when null
+        public String responseResource;      // classpath body loaded on demand through the ResponseCache, see setResponseResource
+        public File responseFile;            // body memory mapped from a file, see setResponseFile
+        public int chunkSize;                // chunked streaming when any of these is set, see setResponseStreaming
+        public long chunkDelay;
+        public long bytesPerSecond;
+        public int sequence = -1;            // position among the responses of one route, see setResponseSequence
+        public boolean sequenceCycle;
+        public String scenario;              // see setScenario
+        public String scenarioState;
+        public String newScenarioState;
+        public List<ResponseFault> responseFaults = new ArrayList<ResponseFault>();  // see addResponseFault
+        public boolean responseCompression = true;  // see setResponseCompression
+        private RequestMatcher requestMatcher;
+        // serialized form, rebuilt on registration and whenever a setter changes the response
+        private volatile WireResponse wire;
+        private final AtomicInteger revision = new AtomicInteger();  // every change gets its own, see ResponseCache
+        private volatile long lastModified = System.currentTimeMillis();  // sent as Last-Modified of a 200
+
+        private void changed() {
+            wire = null;
+            revision.incrementAndGet();
+            lastModified = System.currentTimeMillis();
+        }
+
+        // of the file for file backed responses, otherwise of the last change to the response
+        public long getLastModified() {
+            File file = responseFile;
+            return file != null ? file.lastModified() : lastModified;
+        }
+
+        public void setMockResponseHeader(String name, String value) {
+            responseHeaders.put(name, value);
+            changed();
+        }
+
+        public Map<String, String> getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        public void setResponseCode(int responseCode) {
+            this.responseCode = responseCode;
+            changed();
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        public void setResponseContent(String content) {
+            setResponseContent(content.getBytes());
+        }
+
+        public void setResponseContent(byte[] content) {
+            responseContent = content;
+            responseResource = null;
+            responseFile = null;
+            changed();
+        }
+
+        // the body is read verbatim from the classpath on first use instead of being held by the response
+        public void setResponseResource(String resource) {
+            responseResource = resource;
+            responseContent = null;
+            responseFile = null;
+            changed();
+        }
+
+        // for large bodies: the file is memory mapped when the response is registered and written from the
+        // mapped pages, it never enters the heap and concurrent downloads share the same pages
+        public void setResponseFile(File file) {
+            responseFile = file;
+            responseContent = null;
+            responseResource = null;
+            changed();
+        }
+
+        public File getResponseFile() {
+            return responseFile;
+        }
+
+        // sends the body as Transfer-Encoding: chunked, chunkDelay millis apart and at most bytesPerSecond,
+        // all zero for a plain Content-Length response
+        public void setResponseStreaming(int chunkSize, long chunkDelay, long bytesPerSecond) {
+            if (chunkSize < 0 || chunkDelay < 0 || bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Streaming options must not be negative");
+            }
+            this.chunkSize = chunkSize;
+            this.chunkDelay = chunkDelay;
+            this.bytesPerSecond = bytesPerSecond;
+            changed();
+        }
+
+        // gzip and deflate variants of the body are prepared with the response and picked by Accept-Encoding;
+        // off to always send the body as it is
+        public void setResponseCompression(boolean compression) {
+            this.responseCompression = compression;
+            changed();
+        }
+
+        public boolean isStreaming() {
+            return chunkSize > 0 || chunkDelay > 0 || bytesPerSecond > 0;
+        }
+
+        public String getResponseResource() {
+            return responseResource;
+        }
+
+        // for file backed responses a full copy on the heap, which the server itself never makes; large files are
+        // better read with openResponseContent
+        public byte[] getResponseContent() {
+            String resource = responseResource;
+            File file = responseFile;
+            if (file != null) {
+                if (file.length() > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Response file too large for an array, use openResponseContent: " + file);
+                }
+                try {
+                    return Files.readAllBytes(file.toPath());
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read response file " + file, e);
+                }
+            }
+            return resource != null ? ResponseCache.load(resource) : responseContent;
+        }
+
+        public InputStream openResponseContent() {
+            File file = responseFile;
+            if (file != null) {
+                try {
+                    return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read response file " + file, e);
+                }
+            }
+            String resource = responseResource;
+            if (resource != null) {
+                InputStream in = SimpleMockServer.class.getClassLoader().getResourceAsStream(resource);
+                if (in == null) {
+                    throw new RuntimeException("Response resource not found: " + resource);
+                }
+                return in;
+            }
+            return new ByteArrayInputStream(responseContent == null ? new byte[0] : responseContent);
+        }
+
+        public void setResponseContentType(String type) {
+            responseContentType = type;
+            changed();
+        }
+
+        public String getResponseContentType() {
+            return responseContentType;
+        }
+
+        public void setResponseUrl(String url) {
+            this.responseUrl = url;
+        }
+
+        public String getResponseUrl() {
+            return responseUrl;
+        }
+
+        // url may be a template: /users/{id}, /files/*/meta, /static/** and ?name=value or ?name query predicates
+        public void setResponseMethod(String method) {
+            this.responseMethod = (method == null || method.isEmpty()) ? null : method.toUpperCase();
+        }
+
+        public String getResponseMethod() {
+            return responseMethod;
+        }
+
+        public void setResponseDelay(String spec) {
+            setResponseDelay(ResponseDelay.parse(spec));
+        }
+
+        public void setResponseDelay(ResponseDelay delay) {
+            this.responseDelay = delay;
+            changed();
+        }
+
+        public ResponseDelay getResponseDelay() {
+            return responseDelay;
+        }
+
+        // request predicates, compiled here; responses for the same method and url are told apart by them
+        public void setRequestBody(String body) {
+            requestMatcher().body(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // found anywhere in the body, anchor it with ^ and $ to match all of it
+        public void setRequestBodyPattern(String regex) {
+            requestMatcher().bodyPattern(Pattern.compile(regex, Pattern.DOTALL));
+        }
+
+        // path like $.user.roles[0], value as JSON (42, "text", true, {...}) or plain text for a string
+        public void addRequestBodyJson(String path, String value) {
+            requestMatcher().bodyJson(path, value);
+        }
+
+        public void addRequestHeader(String name, String value) {
+            requestMatcher().header(name, value);
+        }
+
+        public void addRequestHeaderPattern(String name, String regex) {
+            requestMatcher().header(name, Pattern.compile(regex));
+        }
+
+        // responses registered for the same method, url and request predicates with a position are answered in
+        // turn, the last one repeating or, with cycle, starting over
+        public void setResponseSequence(int position, boolean cycle) {
+            if (position < 0) {
+                throw new IllegalArgumentException("Sequence position must not be negative: " + position);
+            }
+            this.sequence = position;
+            this.sequenceCycle = cycle;
+            changed();
+        }
+
+        // answers only while the named scenario is in state, SCENARIO_STARTED initially, and then moves it to
+        // newState (null or empty to stay); a sequence moves it on with its last response
+        public void setScenario(String scenario, String state, String newState) {
+            this.scenario = scenario;
+            this.scenarioState = state == null || state.isEmpty() ? SCENARIO_STARTED : state;
+            this.newScenarioState = newState == null || newState.isEmpty() ? null : newState;
+            changed();
+        }
+
+        // each request to the route draws one fault by probability, their sum must not exceed 100%
+        public void addResponseFault(String spec) {
+            addResponseFault(ResponseFault.parse(spec));
+        }
+
+        public void addResponseFault(ResponseFault fault) {
+            double total = fault.probability;
+            for (ResponseFault added : responseFaults) {
+                total += added.probability;
+            }
+            if (total > 1.0000001) {
+                throw new IllegalArgumentException("Fault probabilities add up to more than 100%: " + responseFaults + ", " + fault);
+            }
+            responseFaults.add(fault);
+            changed();
+        }
+
+        public void clearResponseFaults() {
+            responseFaults.clear();
+            changed();
+        }
+
+        public List<ResponseFault> getResponseFaults() {
+            return responseFaults;
+        }
+
+        // null when the response answers any request to its url
+        RequestMatcher getRequestMatcher() {
+            return requestMatcher;
+        }
+
+        private RequestMatcher requestMatcher() {
+            if (requestMatcher == null) {
+                requestMatcher = new RequestMatcher();
+            }
+            changed();
+            return requestMatcher;
+        }
+
+        // public fields changed directly are only picked up after the response is registered again
+        WireResponse compile() {
+            WireResponse compiled = new WireResponse(this);
+            if (responseResource == null) {
+                wire = compiled;
+            }
+            return compiled;
+        }
+
+        // resource backed responses are serialized on their first hit instead
+        void precompile() {
+            if (responseResource == null) {
+                compile();
+            }
+        }
+
+        WireResponse wire() {
+            WireResponse compiled = wire;
+            return compiled != null ? compiled : compile();
+        }
+
+    }
+
+
+    // bodies of classpath backed responses, serialized on first hit and evicted least recently used first
+    // once the cached responses exceed the byte budget; bodies longer than the budget are served without
+    // compressed variants instead of being compressed again on every hit
+    public static final class ResponseCache {
+
+        private static final class Entry {
+            final WireResponse wire;
+            final int revision;
+            final long bytes;
+
+            Entry(WireResponse wire, int revision) {
+                this.wire = wire;
+                this.revision = revision;
+                this.bytes = wire.retainedLength();
+            }
+        }
+
+        private volatile long budget;
+        // in access order, guarded by itself
+        private final LinkedHashMap<SimpleMockResponse, Entry> entries = new LinkedHashMap<SimpleMockResponse, Entry>(16, 0.75f, true);
+        private final AtomicLong size = new AtomicLong();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public ResponseCache(long budget) {
+            this.budget = budget;
+        }
+
+        WireResponse get(SimpleMockResponse response) {
+            int revision = response.revision.get();
+            Entry entry;
+            synchronized (entries) {
+                entry = entries.get(response);
+            }
+            if (entry != null && entry.revision == revision) {
+                hits.increment();
+                return entry.wire;
+            }
+            misses.increment();
+            long limit = budget;
+            WireResponse wire = new WireResponse(response, limit);
+            Entry fresh = new Entry(wire, revision);
+            if (fresh.bytes > limit) {
+                return wire;
+            }
+            synchronized (entries) {
+                Entry previous = entries.put(response, fresh);
+                if (previous != null) {
+                    size.addAndGet(-previous.bytes);
+                }
+                size.addAndGet(fresh.bytes);
+                evict();
+            }
+            return wire;
+        }
+
+        // oldest first, the eldest entry of an access ordered map is the least recently used
+        private void evict() {
+            synchronized (entries) {
+                Iterator<Entry> eldest = entries.values().iterator();
+                while (size.get() > budget && eldest.hasNext()) {
+                    size.addAndGet(-eldest.next().bytes);
+                    eldest.remove();
+                    evictions.increment();
+                }
+            }
+        }
+
+        public void setBudget(long budget) {
+            this.budget = budget;
+            evict();
+        }
+
+        public long getBudget() {
+            return budget;
+        }
+
+        public long getSize() {
+            return size.get();
+        }
+
+        public int getEntries() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+                size.set(0);
+            }
+        }
+
+        static byte[] load(String resource) {
+            try (InputStream in = SimpleMockServer.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new RuntimeException("Response resource not found: " + resource);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 256));
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read response resource " + resource, e);
+            }
+        }
+    }
+
+
+    static final class WireResponse {
+
+        static final WireResponse NOT_FOUND = new WireResponse(null);
+
+        private static final long MAX_REGION = 1L << 30;
+        private static final int MIN_COMPRESSED_SIZE = 256;  // smaller bodies are always sent as they are
+        private static final int MAX_RANGES = 32;            // more in one Range header get the full body
+        private static final DateTimeFormatter HTTP_DATE =
+                DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+        private final byte[] wire;       // status line, headers with Connection: keep-alive, and the body
+        private final int headLength;
+        private final byte[] closeHead;  // the same head with Connection: close
+        private final ByteBuffer[] regions;  // body outside wire: read only mappings of a file, or slices of one for a 206
+        private final long fileLength;
+        final ResponseDelay delay;
+        final String route;
+        final int status;
+        final int chunkSize;  // > 0 when the body is streamed, see ChunkedStream
+        final long chunkDelay;
+        final long bytesPerSecond;
+        private final ResponseFault[] faults;  // null without any
+        private final WireResponse gzip;     // compressed variants, null when the body is not worth compressing
+        private final WireResponse deflate;
+        private final Map<String, String> headers;  // without framing, shared by the answers derived per request
+        private final String etag;                  // validators, null unless the status is 200
+        private final long lastModified;            // millis in whole seconds, -1 when unknown
+        private final WireResponse notModified;
+
+        WireResponse(SimpleMockResponse response) {
+            this(response, null, null, Long.MAX_VALUE);
+        }
+
+        // without the compressed variants when the body alone is longer than compressUpTo
+        WireResponse(SimpleMockResponse response, long compressUpTo) {
+            this(response, null, null, compressUpTo);
+        }
+
+        // with an encoding, content is the body compressed accordingly
+        private WireResponse(SimpleMockResponse response, byte[] encoded, String encoding, long compressUpTo) {
+            delay = response == null ? null : response.getResponseDelay();
+            faults = response == null || response.responseFaults.isEmpty() ? null
+                    : response.responseFaults.toArray(new ResponseFault[0]);
+            route = response == null ? ServerMetrics.UNMATCHED : RouteTable.routeKey(response);
+            status = response == null ? 500 : response.getResponseCode();
+            File file = response == null ? null : response.getResponseFile();
+            byte[] content = encoded != null ? encoded : response == null || file != null ? null : response.getResponseContent();
+            regions = file == null ? null : map(file);
+            long length = 0;
+            for (int i = 0; regions != null && i < regions.length; i++) {
+                length += regions[i].capacity();
+            }
+            fileLength = length;
+            boolean streaming = response != null && response.isStreaming();
+            chunkSize = !streaming ? 0 : response.chunkSize > 0 ? response.chunkSize : ChunkedStream.DEFAULT_CHUNK_SIZE;
+            chunkDelay = streaming ? response.chunkDelay : 0;
+            bytesPerSecond = streaming ? response.bytesPerSecond : 0;
+            int contentLength = content == null ? 0 : content.length;
+            // mapped files are sent as they are, compressing them would pull them onto the heap
+            boolean compress = encoding == null && contentLength >= MIN_COMPRESSED_SIZE && contentLength <= compressUpTo
+                    && response.responseCompression && !response.getResponseHeaders().containsKey("Content-Encoding");
+            byte[] gzipped = compress ? smaller(compress(content, true), contentLength) : null;
+            byte[] deflated = compress ? smaller(compress(content, false), contentLength) : null;
+            gzip = gzipped == null ? null : new WireResponse(response, gzipped, "gzip", 0);
+            deflate = deflated == null ? null : new WireResponse(response, deflated, "deflate", 0);
+            headers = new LinkedHashMap<String, String>();
+            if (response != null) {
+                headers.putAll(response.getResponseHeaders());
+                headers.put("Content-Type", response.getResponseContentType());
+            }
+            if (encoding != null) {
+                headers.put("Content-Encoding", encoding);
+            }
+            if (encoding != null || gzip != null || deflate != null) {
+                headers.put("Vary", "Accept-Encoding");
+            }
+            // headers set on the response win over the computed validators; classpath resources are rebuilt whenever
+            // they are not cached, so like files they are told apart by length and time instead of hashing the body
+            boolean validated = status == 200;
+            etag = !validated ? null : headers.containsKey("ETag") ? headers.get("ETag")
+                    : file != null ? "\"" + Long.toHexString(fileLength) + "-" + Long.toHexString(file.lastModified()) + "\""
+                    : response.responseResource != null
+                    ? "\"" + Long.toHexString(contentLength) + "-" + Long.toHexString(response.getLastModified()) + "\""
+                    : "\"" + hash(content, contentLength) + "\"";
+            lastModified = !validated ? -1 : headers.containsKey("Last-Modified") ? parseDate(headers.get("Last-Modified"))
+                    : response.getLastModified() / 1000 * 1000;
+            if (validated) {
+                headers.putIfAbsent("ETag", etag);
+                headers.putIfAbsent("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+                if (!streaming) {
+                    headers.put("Accept-Ranges", "bytes");
+                }
+            }
+            Map<String, String> framed = framed(headers, streaming ? -1 : regions != null ? fileLength : contentLength);
+            byte[] head = render(status, framed, "keep-alive");
+            wire = new byte[head.length + contentLength];
+            System.arraycopy(head, 0, wire, 0, head.length);
+            if (contentLength > 0) {
+                System.arraycopy(content, 0, wire, head.length, contentLength);
+            }
+            headLength = head.length;
+            closeHead = render(status, framed, "close");
+            Map<String, String> unchanged = new LinkedHashMap<String, String>(headers);
+            unchanged.remove("Content-Type");
+            notModified = validated ? new WireResponse(this, 304, unchanged, null) : null;
+        }
+
+        // an answer derived from a prepared response: its 304, or a 206 or 416 built per request around slices of
+        // its body; headers are complete with framing
+        private WireResponse(WireResponse of, int status, Map<String, String> headers, ByteBuffer[] body) {
+            delay = of.delay;
+            faults = of.faults;
+            route = of.route;
+            this.status = status;
+            chunkSize = 0;
+            chunkDelay = 0;
+            bytesPerSecond = 0;
+            gzip = null;
+            deflate = null;
+            this.headers = headers;
+            etag = of.etag;
+            lastModified = of.lastModified;
+            notModified = null;
+            regions = body;
+            long length = 0;
+            for (int i = 0; body != null && i < body.length; i++) {
+                length += body[i].remaining();
+            }
+            fileLength = length;
+            wire = render(status, headers, "keep-alive");
+            headLength = wire.length;
+            closeHead = render(status, headers, "close");
+        }
+
+        private static String hash(byte[] content, int length) {
+            MessageDigest digest = BodySink.sha256();
+            if (length > 0) {
+                digest.update(content, 0, length);
+            }
+            return BodySink.hex(Arrays.copyOf(digest.digest(), 16));
+        }
+
+        static long parseDate(String value) {
+            try {
+                return Instant.from(HTTP_DATE.parse(value.trim())).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+        }
+
+        // done once per registration, requests only pick the variant
+        private static byte[] compress(byte[] content, boolean gzip) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, gzip);
+            try {
+                if (gzip) {
+                    // header and trailer of RFC 1952 around a raw deflate stream
+                    out.write(new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+                }
+                try (DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater)) {
+                    stream.write(content);
+                }
+                if (gzip) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content, 0, content.length);
+                    ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                    trailer.putInt((int) crc.getValue()).putInt(content.length);
+                    out.write(trailer.array());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not compress response body", e);
+            } finally {
+                deflater.end();
+            }
+            return out.toByteArray();
+        }
+
+        private static byte[] smaller(byte[] compressed, int length) {
+            return compressed.length < length ? compressed : null;
+        }
+
+        // the variant for the request's Accept-Encoding, gzip preferred; all of them carry Vary: Accept-Encoding
+        WireResponse negotiate(SimpleMockRequest request) {
+            if (gzip == null && deflate == null) {
+                return this;
+            }
+            String accepted = request.getHeader("Accept-Encoding");
+            if (accepted == null) {
+                return this;
+            }
+            if (gzip != null && accepts(accepted, "gzip")) {
+                return gzip;
+            }
+            return deflate != null && accepts(accepted, "deflate") ? deflate : this;
+        }
+
+        // listed, or covered by *, without q=0
+        static boolean accepts(String header, String coding) {
+            boolean wildcard = false;
+            for (String entry : header.split(",")) {
+                int parameters = entry.indexOf(';');
+                String name = (parameters < 0 ? entry : entry.substring(0, parameters)).trim();
+                boolean refused = parameters >= 0 && entry.substring(parameters + 1).replace(" ", "").matches("(?i)q=0(\\.0*)?");
+                if (name.equalsIgnoreCase(coding)) {
+                    return !refused;
+                }
+                if (name.equals("*")) {
+                    wildcard = !refused;
+                }
+            }
+            return wildcard;
+        }
+
+        // mapped once per registration, every connection writes duplicates of the same pages
+        private static ByteBuffer[] map(File file) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer[] mapped = new ByteBuffer[(int) ((size + MAX_REGION - 1) / MAX_REGION)];
+                for (int i = 0; i < mapped.length; i++) {
+                    long position = i * MAX_REGION;
+                    mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_REGION, size - position));
+                }
+                return mapped;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not map response file " + file, e);
+            }
+        }
+
+        // a negative contentLength announces a chunked body
+        private static Map<String, String> framed(Map<String, String> headers, long contentLength) {
+            Map<String, String> framed = new LinkedHashMap<String, String>(headers);
+            if (contentLength < 0) {
+                framed.put("Transfer-Encoding", "chunked");
+            } else {
+                framed.put("Content-Length", Long.toString(contentLength));
+            }
+            return framed;
+        }
+
+        private static byte[] render(int status, Map<String, String> headers, String connection) {
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+            headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+            head.append("Server: Mock HTTP Server v1.0\r\n");
+            head.append("Connection: ").append(connection).append("\r\n");
+            head.append("\r\n");
+            return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        // the prepared 304 for a matching If-None-Match or, without one, If-Modified-Since; a 206 or 416 for a
+        // Range on GET unless an If-Range does not match; otherwise this
+        WireResponse conditional(SimpleMockRequest request) {
+            if (etag == null) {
+                return this;
+            }
+            boolean get = "GET".equals(request.getMethod());
+            if (!get && !"HEAD".equals(request.getMethod())) {
+                return this;
+            }
+            String noneMatch = request.getHeader("If-None-Match");
+            if (noneMatch != null ? matches(noneMatch) : modifiedBefore(request.getHeader("If-Modified-Since"))) {
+                return notModified;
+            }
+            String range = request.getHeader("Range");
+            if (range == null || !get || chunkSize > 0 || !rangeStillValid(request.getHeader("If-Range"))) {
+                return this;
+            }
+            return ranges(range);
+        }
+
+        // weak comparison, any of the listed tags or *
+        private boolean matches(String noneMatch) {
+            for (String tag : noneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean modifiedBefore(String since) {
+            return since != null && lastModified >= 0 && parseDate(since) >= lastModified;
+        }
+
+        // an If-Range has to name the strong tag or the exact date
+        private boolean rangeStillValid(String ifRange) {
+            if (ifRange == null) {
+                return true;
+            }
+            ifRange = ifRange.trim();
+            return ifRange.startsWith("\"") ? ifRange.equals(etag) : lastModified >= 0 && parseDate(ifRange) == lastModified;
+        }
+
+        // invalid or too many ranges are ignored and get the full body, as RFC 9110 allows
+        private WireResponse ranges(String header) {
+            long length = fileLength + wire.length - headLength;
+            if (!header.startsWith("bytes=")) {
+                return this;
+            }
+            String[] specs = header.substring(6).split(",");
+            if (specs.length > MAX_RANGES) {
+                return this;
+            }
+            long[] from = new long[specs.length];
+            long[] to = new long[specs.length];
+            int count = 0;
+            for (String spec : specs) {
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return this;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                try {
+                    if (first.isEmpty()) {
+                        start = Math.max(0, length - Long.parseLong(last));
+                        end = length - 1;
+                    } else {
+                        start = Long.parseLong(first);
+                        end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                        if (!last.isEmpty() && Long.parseLong(last) < start) {
+                            return this;
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    return this;
+                }
+                if (start < length && start <= end) {
+                    from[count] = start;
+                    to[count++] = end;
+                }
+            }
+            Map<String, String> partial = new LinkedHashMap<String, String>(headers);
+            if (count == 0) {
+                partial.put("Content-Range", "bytes */" + length);
+                return new WireResponse(this, 416, framed(partial, 0), null);
+            }
+            if (count == 1) {
+                partial.put("Content-Range", "bytes " + from[0] + "-" + to[0] + "/" + length);
+                ByteBuffer[] body = slice(from[0], to[0] + 1).toArray(new ByteBuffer[0]);
+                return new WireResponse(this, 206, framed(partial, to[0] + 1 - from[0]), body);
+            }
+            // multipart/byteranges, the part heads are the only bytes copied
+            String boundary = "byteranges-" + etag.replaceAll("[^0-9A-Za-z]", "");
+            String type = partial.remove("Content-Type");
+            partial.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            List<ByteBuffer> body = new ArrayList<ByteBuffer>(2 * count + 1);
+            for (int i = 0; i < count; i++) {
+                String part = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n" + (type == null ? "" : "Content-Type: " + type + "\r\n")
+                        + "Content-Range: bytes " + from[i] + "-" + to[i] + "/" + length + "\r\n\r\n";
+                body.add(ByteBuffer.wrap(part.getBytes(StandardCharsets.ISO_8859_1)));
+                body.addAll(slice(from[i], to[i] + 1));
+            }
+            body.add(ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+            long bodyLength = 0;
+            for (ByteBuffer buffer : body) {
+                bodyLength += buffer.remaining();
+            }
+            return new WireResponse(this, 206, framed(partial, bodyLength), body.toArray(new ByteBuffer[0]));
+        }
+
+        // views of the body bytes [start, end), heap or mapped
+        private List<ByteBuffer> slice(long start, long end) {
+            List<ByteBuffer> slices = new ArrayList<ByteBuffer>(1);
+            if (regions == null) {
+                slices.add(ByteBuffer.wrap(wire, headLength + (int) start, (int) (end - start)).slice());
+                return slices;
+            }
+            long offset = 0;
+            for (ByteBuffer region : regions) {
+                long regionEnd = offset + region.limit();
+                if (regionEnd > start && offset < end) {
+                    ByteBuffer slice = region.duplicate();
+                    slice.limit((int) (Math.min(end, regionEnd) - offset));
+                    slice.position((int) (Math.max(start, offset) - offset));
+                    slices.add(slice.slice());
+                }
+                offset = regionEnd;
+            }
+            return slices;
+        }
+
+        long length(boolean keepAlive) {
+            return fileLength + (keepAlive ? wire.length : closeHead.length + wire.length - headLength);
+        }
+
+        // bytes held for this response, variants included
+        long retainedLength() {
+            return length(true) + (gzip == null ? 0 : gzip.length(true)) + (deflate == null ? 0 : deflate.length(true));
+        }
+
+        void writeTo(OutputStream os, boolean keepAlive) throws IOException {
+            if (keepAlive) {
+                os.write(wire);
+            } else {
+                os.write(closeHead);
+                os.write(wire, headLength, wire.length - headLength);
+            }
+            if (regions != null) {
+                for (ByteBuffer region : regions) {
+                    write(os, region.duplicate());
+                }
+            }
+        }
+
+        static void write(OutputStream os, ByteBuffer buffer) throws IOException {
+            if (buffer.hasArray()) {
+                os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                return;
+            }
+            // a blocking socket has no channel, mapped pages are copied through the stream in small pieces
+            WritableByteChannel out = Channels.newChannel(os);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+
+        ByteBuffer head(boolean keepAlive) {
+            return keepAlive ? ByteBuffer.wrap(wire, 0, headLength) : ByteBuffer.wrap(closeHead);
+        }
+
+        // fresh views of the body, heap or mapped
+        ByteBuffer[] body() {
+            if (regions == null) {
+                return new ByteBuffer[]{ByteBuffer.wrap(wire, headLength, wire.length - headLength).slice()};
+            }
+            ByteBuffer[] body = new ByteBuffer[regions.length];
+            for (int i = 0; i < regions.length; i++) {
+                body[i] = regions[i].duplicate();
+            }
+            return body;
+        }
+
+        // null when this request gets the response as registered
+        ResponseFault fault() {
+            return faults == null ? null : ResponseFault.pick(faults);
+        }
+
+        // what TRUNCATE, TRICKLE and WRONG_LENGTH send: the Connection: close head with a Content-Length, also for
+        // streamed responses, and the body, cut after fault.bytes for TRUNCATE; WRONG_LENGTH announces fault.bytes more
+        ByteBuffer[] faultBuffers(ResponseFault fault) {
+            ByteBuffer[] body = body();
+            long length = fileLength + wire.length - headLength;
+            long announced = fault.type == FaultType.WRONG_LENGTH ? length + fault.bytes : length;
+            String head = new String(closeHead, StandardCharsets.ISO_8859_1)
+                    .replaceFirst("\r\n(Content-Length|Transfer-Encoding): [^\r]*", "\r\nContent-Length: " + announced);
+            if (fault.type == FaultType.TRUNCATE) {
+                long left = fault.bytes;
+                for (ByteBuffer buffer : body) {
+                    int keep = (int) Math.min(left, buffer.remaining());
+                    buffer.limit(buffer.position() + keep);
+                    left -= keep;
+                }
+            }
+            ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+            buffers[0] = ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1));
+            System.arraycopy(body, 0, buffers, 1, body.length);
+            return buffers;
+        }
+
+        ByteBuffer[] toBuffers(boolean keepAlive) {
+            ByteBuffer[] buffers = new ByteBuffer[(keepAlive ? 1 : 2) + (regions == null ? 0 : regions.length)];
+            int i = 0;
+            if (keepAlive) {
+                buffers[i++] = ByteBuffer.wrap(wire);
+            } else {
+                buffers[i++] = ByteBuffer.wrap(closeHead);
+                buffers[i++] = ByteBuffer.wrap(wire, headLength, wire.length - headLength);
+            }
+            for (int r = 0; regions != null && r < regions.length; r++) {
+                buffers[i++] = regions[r].duplicate();
+            }
+            return buffers;
+        }
+    }
+
+
+    // a chunked body being sent, paced by chunkDelay and bytesPerSecond; the next chunk is scheduled on the timer
+    // so a slow stream holds no thread. A TRICKLE fault uses the same pacing for an unframed response instead
+    static final class ChunkedStream {
+
+        static final int DEFAULT_CHUNK_SIZE = 8192;
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] LAST_CHUNK = "\r\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        final WireResponse response;
+        final boolean keepAlive;
+        private final ByteBuffer[] body;
+        private int region;
+        private long sent;
+        private final long startedAt = System.currentTimeMillis();
+        private final ResponseFault trickle;  // null for a chunked body
+        long writeNanos;  // spent writing chunks, recorded as one WRITE sample when the stream is done
+
+        ChunkedStream(WireResponse response, boolean keepAlive) {
+            this.response = response;
+            this.keepAlive = keepAlive;
+            this.body = response.body();
+            this.trickle = null;
+        }
+
+        // the head is body[0], sent trickle.bytes at a time, then the body at once; the connection closes after
+        ChunkedStream(WireResponse response, ResponseFault trickle) {
+            this.response = response;
+            this.keepAlive = false;
+            this.body = response.faultBuffers(trickle);
+            this.trickle = trickle;
+        }
+
+        boolean isDone() {
+            return region == body.length;
+        }
+
+        // the next chunk with its framing, the terminating chunk is appended to the last one
+        ByteBuffer[] next() {
+            if (trickle != null) {
+                return nextPiece();
+            }
+            while (region < body.length && !body[region].hasRemaining()) {
+                region++;
+            }
+            if (region == body.length) {
+                return new ByteBuffer[]{ByteBuffer.wrap(LAST_CHUNK, 2, LAST_CHUNK.length - 2)};
+            }
+            ByteBuffer data = body[region];
+            int length = Math.min(response.chunkSize, data.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + length);
+            data.position(data.position() + length);
+            sent += length;
+            while (region < body.length && !body[region].hasRemaining()) {
+                region++;
+            }
+            byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            return new ByteBuffer[]{ByteBuffer.wrap(size), chunk, ByteBuffer.wrap(isDone() ? LAST_CHUNK : CRLF)};
+        }
+
+        private ByteBuffer[] nextPiece() {
+            if (region > 0) {
+                ByteBuffer[] rest = Arrays.copyOfRange(body, region, body.length);
+                region = body.length;
+                return rest;
+            }
+            ByteBuffer head = body[0];
+            ByteBuffer piece = head.duplicate();
+            piece.limit(piece.position() + (int) Math.min(trickle.bytes, head.remaining()));
+            head.position(piece.limit());
+            if (!head.hasRemaining()) {
+                region = 1;
+            }
+            return new ByteBuffer[]{piece};
+        }
+
+        // millis until the next chunk may be sent
+        long pause() {
+            if (trickle != null) {
+                return trickle.millis;
+            }
+            long wait = response.chunkDelay;
+            if (response.bytesPerSecond > 0) {
+                wait = Math.max(wait, startedAt + sent * 1000 / response.bytesPerSecond - System.currentTimeMillis());
+            }
+            return wait;
+        }
+    }
+
+
+    static String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 409: return "Conflict";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+
+
+    // immutable, a new table is built and swapped in whenever the responses change
+    static final class RouteTable {
+
+        static final RouteTable EMPTY = new RouteTable(Collections.<SimpleMockResponse>emptyList());
+
+        private static final String ANY_METHOD = "";
+
+        private final List<SimpleMockResponse> responses;
+        // method ("" for any) -> raw request uri -> responses, for routes without templates
+        private final Map<String, Map<String, Variants>> exact = new HashMap<String, Map<String, Variants>>();
+        private final RouteNode root = new RouteNode();
+        // scenario name -> current state, only changed by compareAndSet so concurrent clients see one transition
+        final Map<String, AtomicReference<String>> scenarios = new HashMap<String, AtomicReference<String>>();
+        private final List<Step> steps = new ArrayList<Step>();
+        private final Map<String, AtomicLong> calls = new HashMap<String, AtomicLong>();  // per step key
+        private RouteTable previous;  // whose scenario states and sequence positions carry over, only while building
+
+        RouteTable(Collection<SimpleMockResponse> registered) {
+            this(registered, null);
+        }
+
+        private RouteTable(Collection<SimpleMockResponse> registered, RouteTable previous) {
+            this.previous = previous;
+            Map<String, SimpleMockResponse> unique = new LinkedHashMap<String, SimpleMockResponse>();
+            for (SimpleMockResponse response : registered) {
+                // a later registration for the same method and url replaces the earlier one
+                unique.remove(routeKey(response));
+                unique.put(routeKey(response), response);
+            }
+            responses = Collections.unmodifiableList(new ArrayList<SimpleMockResponse>(unique.values()));
+            Map<String, Variants> locations = new LinkedHashMap<String, Variants>();
+            int order = 0;
+            for (SimpleMockResponse response : responses) {
+                locations.computeIfAbsent(location(response), k -> new Variants()).add(response, order++);
+            }
+            for (Variants variants : locations.values()) {
+                variants.seal(this);
+                SimpleMockResponse response = variants.first;
+                String url = response.getResponseUrl() == null ? "" : response.getResponseUrl();
+                String method = response.getResponseMethod() == null ? ANY_METHOD : response.getResponseMethod();
+                if (!isTemplate(url)) {
+                    exact.computeIfAbsent(method, k -> new HashMap<String, Variants>()).put(url, variants);
+                }
+                int query = url.indexOf('?');
+                String path = query < 0 ? url : url.substring(0, query);
+                RouteNode node = root;
+                for (String segment : segments(path)) {
+                    node = node.child(segment);
+                }
+                node.add(new Route(variants, method, query < 0 ? "" : url.substring(query + 1), variants.order));
+            }
+            root.seal();
+            this.previous = null;
+        }
+
+        static String routeKey(SimpleMockResponse response) {
+            String key = stepKey(response);
+            return response.sequence < 0 ? key : key + " #" + response.sequence;
+        }
+
+        // responses with the same step key form one sequence
+        private static String stepKey(SimpleMockResponse response) {
+            RequestMatcher matcher = response.getRequestMatcher();
+            String key = matcher == null ? location(response) : location(response) + " " + matcher;
+            return response.scenario == null ? key : key + " {" + response.scenario + ":" + response.scenarioState + "}";
+        }
+
+        // shared with the previous table, so requests still finishing on it move the same state
+        private AtomicReference<String> scenario(String name) {
+            return scenarios.computeIfAbsent(name, k -> previous != null && previous.scenarios.containsKey(k)
+                    ? previous.scenarios.get(k) : new AtomicReference<String>(SCENARIO_STARTED));
+        }
+
+        private AtomicLong calls(String stepKey) {
+            return calls.computeIfAbsent(stepKey, k -> previous != null && previous.calls.containsKey(k)
+                    ? previous.calls.get(k) : new AtomicLong());
+        }
+
+        // scenarios back to STARTED and sequences back to their first response
+        void reset() {
+            scenarios.values().forEach(state -> state.set(SCENARIO_STARTED));
+            steps.forEach(step -> step.calls.set(0));
+        }
+
+        private static String location(SimpleMockResponse response) {
+            String method = response.getResponseMethod();
+            return (method == null || method.isEmpty()) ? response.getResponseUrl() : method + " " + response.getResponseUrl();
+        }
+
+        private static boolean isTemplate(String url) {
+            return url.indexOf('{') >= 0 || url.indexOf('*') >= 0;
+        }
+
+        private static String[] segments(String path) {
+            return (path.startsWith("/") ? path.substring(1) : path).split("/", -1);
+        }
+
+        List<SimpleMockResponse> responses() {
+            return responses;
+        }
+
+        // keeps the scenario states and sequence positions, unlike a table built from scratch
+        RouteTable with(SimpleMockResponse response) {
+            List<SimpleMockResponse> copy = new ArrayList<SimpleMockResponse>(responses);
+            copy.add(response);
+            return new RouteTable(copy, this);
+        }
+
+        SimpleMockResponse find(String method, String uri) {
+            return find(method, uri, null);
+        }
+
+        SimpleMockResponse find(SimpleMockRequest request) {
+            return find(request.getMethod(), request.getUrl(), request);
+        }
+
+        // without a request only responses that have no request matchers are found
+        private SimpleMockResponse find(String method, String uri, SimpleMockRequest request) {
+            Map<String, Variants> byUri = exact.get(method);
+            Variants variants = byUri == null ? null : byUri.get(uri);
+            SimpleMockResponse response = variants == null ? null : variants.select(request);
+            if (response == null && (byUri = exact.get(ANY_METHOD)) != null && (variants = byUri.get(uri)) != null) {
+                response = variants.select(request);
+            }
+            if (response != null) {
+                return response;
+            }
+            int query = uri.indexOf('?');
+            String path = query < 0 ? uri : uri.substring(0, query);
+            return root.match(path, path.startsWith("/") ? 1 : 0, method, query < 0 ? "" : uri.substring(query + 1), request);
+        }
+    }
+
+
+    // the responses registered for one method and url, told apart by their request matchers
+    private static final class Variants {
+
+        SimpleMockResponse first;
+        int order;  // of the latest registration
+        private final Map<String, List<SimpleMockResponse>> grouped = new LinkedHashMap<String, List<SimpleMockResponse>>();
+        // exact bodies by digest, so picking among many body variants is one lookup
+        private Map<String, List<Step>> byBody = Collections.emptyMap();
+        private List<Step> matched = Collections.emptyList();  // other matchers, latest first
+        private List<Step> unmatched = Collections.emptyList();  // no matchers, latest first
+
+        void add(SimpleMockResponse response, int order) {
+            if (first == null) {
+                first = response;
+            }
+            this.order = order;
+            grouped.computeIfAbsent(RouteTable.stepKey(response), k -> new ArrayList<SimpleMockResponse>()).add(response);
+        }
+
+        void seal(RouteTable table) {
+            for (List<SimpleMockResponse> group : grouped.values()) {
+                group.sort(Comparator.comparingInt(r -> r.sequence));
+                SimpleMockResponse response = group.get(0);
+                Step step = new Step(group, response.scenario == null ? null : table.scenario(response.scenario),
+                        table.calls(RouteTable.stepKey(response)));
+                table.steps.add(step);
+                RequestMatcher matcher = response.getRequestMatcher();
+                if (matcher == null) {
+                    unmatched = prepend(unmatched, step);
+                } else if (matcher.bodyDigest() != null) {
+                    if (byBody.isEmpty()) {
+                        byBody = new HashMap<String, List<Step>>();
+                    }
+                    byBody.put(matcher.bodyDigest(), prepend(byBody.get(matcher.bodyDigest()), step));
+                } else {
+                    matched = prepend(matched, step);
+                }
+            }
+            grouped.clear();
+        }
+
+        private static List<Step> prepend(List<Step> steps, Step step) {
+            List<Step> copy = new ArrayList<Step>();
+            copy.add(step);
+            if (steps != null) {
+                copy.addAll(steps);
+            }
+            return copy;
+        }
+
+        SimpleMockResponse select(SimpleMockRequest request) {
+            while (true) {
+                Step step = find(request);
+                if (step == null) {
+                    return null;
+                }
+                SimpleMockResponse response = step.take();
+                if (response != null) {
+                    return response;
+                }
+                // another client moved the scenario on first, look again in the new state
+            }
+        }
+
+        private Step find(SimpleMockRequest request) {
+            if (request != null && !byBody.isEmpty()) {
+                List<Step> candidates = byBody.get(request.getContentDigest());
+                for (int i = 0; candidates != null && i < candidates.size(); i++) {
+                    if (candidates.get(i).accepts(request)) {
+                        return candidates.get(i);
+                    }
+                }
+            }
+            for (int i = 0; request != null && i < matched.size(); i++) {
+                if (matched.get(i).accepts(request)) {
+                    return matched.get(i);
+                }
+            }
+            for (int i = 0; i < unmatched.size(); i++) {
+                if (unmatched.get(i).accepts(null)) {
+                    return unmatched.get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+
+    // one response, or a sequence of them served in turn, optionally gated by a scenario state
+    private static final class Step {
+
+        private final SimpleMockResponse[] responses;
+        private final boolean cycle;
+        private final RequestMatcher matcher;
+        private final AtomicReference<String> scenario;  // null when not part of a scenario
+        private final String state;
+        private final boolean counted;  // only sequences and scenarios read calls, plain routes leave it alone
+        final AtomicLong calls;
+
+        Step(List<SimpleMockResponse> responses, AtomicReference<String> scenario, AtomicLong calls) {
+            this.calls = calls;
+            this.responses = responses.toArray(new SimpleMockResponse[responses.size()]);
+            this.counted = scenario != null || responses.stream().anyMatch(r -> r.sequence >= 0);
+            this.cycle = responses.stream().anyMatch(r -> r.sequenceCycle);
+            this.matcher = this.responses[0].getRequestMatcher();
+            this.scenario = scenario;
+            this.state = this.responses[0].scenarioState;
+        }
+
+        // request is null for steps without matchers
+        boolean accepts(SimpleMockRequest request) {
+            return (scenario == null || state.equals(scenario.get())) && (request == null || matcher.matches(request));
+        }
+
+        // null when the scenario left the state this step answers in
+        SimpleMockResponse take() {
+            if (responses.length == 1) {
+                SimpleMockResponse response = responses[0];
+                if (response.newScenarioState != null && !moveScenario(response.newScenarioState)) {
+                    return null;
+                }
+                if (counted) {
+                    calls.incrementAndGet();
+                }
+                return response;
+            }
+            long call = calls.getAndIncrement();
+            int last = responses.length - 1;
+            SimpleMockResponse response = responses[cycle ? (int) (call % responses.length) : (int) Math.min(call, last)];
+            // a sequence moves its scenario on when its last response is served
+            if (response == responses[last] && response.newScenarioState != null) {
+                moveScenario(response.newScenarioState);
+            }
+            return response;
+        }
+
+        // states are compared by value, the CAS is on the instance that was read
+        private boolean moveScenario(String newState) {
+            String current = scenario.get();
+            return state.equals(current) && scenario.compareAndSet(current, newState);
+        }
+    }
+
+
+    // request predicates of a response; the exact body is checked by the Variants digest index, the rest here
+    static final class RequestMatcher {
+
+        private String bodyDigest;
+        private final List<Pattern> bodyPatterns = new ArrayList<Pattern>();
+        private final List<Object[]> jsonPaths = new ArrayList<Object[]>();  // String keys and Integer indexes
+        private final List<Object> jsonValues = new ArrayList<Object>();
+        private final List<String> headerNames = new ArrayList<String>();
+        private final List<Object> headerValues = new ArrayList<Object>();  // String or Pattern
+        private final List<String> description = new ArrayList<String>();
+
+        void body(byte[] body) {
+            MessageDigest sha = BodySink.sha256();
+            bodyDigest = BodySink.hex(sha.digest(body));
+            description.add("body=" + bodyDigest.substring(0, 12));
+        }
+
+        void bodyPattern(Pattern pattern) {
+            bodyPatterns.add(pattern);
+            description.add("body~" + pattern.pattern());
+        }
+
+        void bodyJson(String path, String value) {
+            jsonPaths.add(Json.path(path));
+            Object expected;
+            try {
+                expected = Json.parse(new StringReader(value));
+            } catch (IllegalArgumentException e) {
+                expected = value;  // plain text for a string
+            }
+            jsonValues.add(expected);
+            description.add(path + "=" + value);
+        }
+
+        void header(String name, Object value) {
+            headerNames.add(name);
+            headerValues.add(value);
+            description.add(name + (value instanceof Pattern ? "~" + ((Pattern) value).pattern() : ":" + value));
+        }
+
+        String bodyDigest() {
+            return bodyDigest;
+        }
+
+        boolean matches(SimpleMockRequest request) {
+            for (int i = 0; i < headerNames.size(); i++) {
+                if (!headerMatches(request.getHeaders().get(headerNames.get(i)), headerValues.get(i))) {
+                    return false;
+                }
+            }
+            if (!bodyPatterns.isEmpty()) {
+                // a spilled body is not decoded onto the heap, it matches no pattern
+                if (request.isContentSpilled()) {
+                    return false;
+                }
+                String body = request.getContentAsString();
+                for (Pattern pattern : bodyPatterns) {
+                    if (!pattern.matcher(body).find()) {
+                        return false;
+                    }
+                }
+            }
+            if (!jsonPaths.isEmpty()) {
+                Object json = request.contentJson();
+                for (int i = 0; i < jsonPaths.size(); i++) {
+                    if (!Objects.equals(Json.select(json, jsonPaths.get(i)), jsonValues.get(i))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static boolean headerMatches(List<String> values, Object expected) {
+            for (int i = 0; values != null && i < values.size(); i++) {
+                if (expected instanceof Pattern ? ((Pattern) expected).matcher(values.get(i)).matches() : expected.equals(values.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + String.join(", ", description) + "]";
+        }
+    }
+
+
+    // just enough JSON for body matchers: objects become maps, arrays lists, numbers normalized BigDecimals
+    static final class Json {
+
+        static final Object NULL = new Object() {
+            @Override
+            public String toString() {
+                return "null";
+            }
+        };
+        static final Object MISSING = new Object();
+
+        private final Reader in;
+        private int next;
+
+        private Json(Reader in) throws IOException {
+            this.in = in;
+            this.next = in.read();
+        }
+
+        // throws IllegalArgumentException when the input is not one JSON value
+        static Object parse(Reader reader) {
+            try {
+                Json json = new Json(reader);
+                Object value = json.value();
+                json.skipWhitespace();
+                if (json.next != -1) {
+                    throw new IllegalArgumentException("trailing characters");
+                }
+                return value;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // $.a.b[0] or $['a']['b'][0]
+        static Object[] path(String path) {
+            if (!path.startsWith("$")) {
+                throw new IllegalArgumentException("JSON path must start with $: " + path);
+            }
+            List<Object> segments = new ArrayList<Object>();
+            int i = 1;
+            while (i < path.length()) {
+                char c = path.charAt(i);
+                if (c == '.') {
+                    int end = i + 1;
+                    while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                        end++;
+                    }
+                    segments.add(path.substring(i + 1, end));
+                    i = end;
+                } else if (c == '[') {
+                    int end = path.indexOf(']', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unclosed [ in JSON path: " + path);
+                    }
+                    String index = path.substring(i + 1, end).trim();
+                    segments.add(index.startsWith("'") || index.startsWith("\"")
+                            ? index.substring(1, index.length() - 1) : (Object) Integer.valueOf(index));
+                    i = end + 1;
+                } else {
+                    throw new IllegalArgumentException("Unexpected '" + c + "' in JSON path: " + path);
+                }
+            }
+            return segments.toArray();
+        }
+
+        static Object select(Object json, Object[] path) {
+            Object current = json;
+            for (Object segment : path) {
+                if (segment instanceof String && current instanceof Map) {
+                    current = ((Map<?, ?>) current).containsKey(segment) ? ((Map<?, ?>) current).get(segment) : MISSING;
+                } else if (segment instanceof Integer && current instanceof List && (Integer) segment < ((List<?>) current).size()) {
+                    current = ((List<?>) current).get((Integer) segment);
+                } else {
+                    return MISSING;
+                }
+            }
+            return current;
+        }
+
+        private Object value() throws IOException {
+            skipWhitespace();
+            switch (next) {
+                case '{':
+                    Map<String, Object> object = new LinkedHashMap<String, Object>();
+                    read();
+                    skipWhitespace();
+                    if (next == '}') {
+                        read();
+                        return object;
+                    }
+                    do {
+                        skipWhitespace();
+                        String key = string();
+                        skipWhitespace();
+                        expect(':');
+                        object.put(key, value());
+                        skipWhitespace();
+                    } while (consume(','));
+                    expect('}');
+                    return object;
+                case '[':
+                    List<Object> array = new ArrayList<Object>();
+                    read();
+                    skipWhitespace();
+                    if (next == ']') {
+                        read();
+                        return array;
+                    }
+                    do {
+                        array.add(value());
+                        skipWhitespace();
+                    } while (consume(','));
+                    expect(']');
+                    return array;
+                case '"':
+                    return string();
+                case 't':
+                    literal("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    literal("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    literal("null");
+                    return NULL;
+                default:
+                    return number();
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (next != '"') {
+                if (next == -1) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                if (next == '\\') {
+                    read();
+                    switch (next) {
+                        case 'b': out.append('\b'); break;
+                        case 'f': out.append('\f'); break;
+                        case 'n': out.append('\n'); break;
+                        case 'r': out.append('\r'); break;
+                        case 't': out.append('\t'); break;
+                        case 'u':
+                            char[] hex = new char[4];
+                            for (int i = 0; i < 4; i++) {
+                                read();
+                                hex[i] = (char) next;
+                            }
+                            out.append((char) Integer.parseInt(new String(hex), 16));
+                            break;
+                        default: out.append((char) next);
+                    }
+                } else {
+                    out.append((char) next);
+                }
+                read();
+            }
+            read();
+            return out.toString();
+        }
+
+        private Object number() throws IOException {
+            StringBuilder out = new StringBuilder();
+            while (next == '-' || next == '+' || next == '.' || next == 'e' || next == 'E' || (next >= '0' && next <= '9')) {
+                out.append((char) next);
+                read();
+            }
+            try {
+                return new java.math.BigDecimal(out.toString()).stripTrailingZeros();
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("unexpected input");
+            }
+        }
+
+        private void literal(String word) throws IOException {
+            for (int i = 0; i < word.length(); i++) {
+                expect(word.charAt(i));
+            }
+        }
+
+        private boolean consume(char c) throws IOException {
+            if (next != c) {
+                return false;
+            }
+            read();
+            return true;
+        }
+
+        private void expect(char c) throws IOException {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("expected '" + c + "'");
+            }
+        }
+
+        private void skipWhitespace() throws IOException {
+            while (next == ' ' || next == '\t' || next == '\n' || next == '\r') {
+                read();
+            }
+        }
+
+        private void read() throws IOException {
+            next = in.read();
+        }
+    }
+
+
+    private static final class RouteNode {
+
+        private Map<String, RouteNode> literals = Collections.emptyMap();
+        private RouteNode parameter;   // {name} or *, matches exactly one segment
+        private RouteNode remainder;   // **, matches all remaining segments
+        private Route[] routes = new Route[0];
+
+        RouteNode child(String segment) {
+            if ("**".equals(segment)) {
+                return remainder == null ? (remainder = new RouteNode()) : remainder;
+            }
+            if ("*".equals(segment) || (segment.startsWith("{") && segment.endsWith("}"))) {
+                return parameter == null ? (parameter = new RouteNode()) : parameter;
+            }
+            if (literals.isEmpty()) {
+                literals = new HashMap<String, RouteNode>();
+            }
+            return literals.computeIfAbsent(segment, k -> new RouteNode());
+        }
+
+        void add(Route route) {
+            routes = Arrays.copyOf(routes, routes.length + 1);
+            routes[routes.length - 1] = route;
+        }
+
+        void seal() {
+            Arrays.sort(routes);
+            literals.values().forEach(RouteNode::seal);
+            if (parameter != null) {
+                parameter.seal();
+            }
+            if (remainder != null) {
+                remainder.seal();
+            }
+        }
+
+        // depth first over the path segments, literal segments win over parameters and parameters over **
+        SimpleMockResponse match(String path, int start, String method, String query, SimpleMockRequest request) {
+            if (start < 0) {
+                return select(method, query, request);
+            }
+            int slash = path.indexOf('/', start);
+            String segment = path.substring(start, slash < 0 ? path.length() : slash);
+            int next = slash < 0 ? -1 : slash + 1;
+            RouteNode literal = literals.get(segment);
+            SimpleMockResponse response = literal == null ? null : literal.match(path, next, method, query, request);
+            if (response == null && parameter != null && !segment.isEmpty()) {
+                response = parameter.match(path, next, method, query, request);
+            }
+            if (response == null && remainder != null) {
+                response = remainder.select(method, query, request);
+            }
+            return response;
+        }
+
+        private SimpleMockResponse select(String method, String query, SimpleMockRequest request) {
+            for (Route route : routes) {
+                SimpleMockResponse response = route.matches(method, query) ? route.variants.select(request) : null;
+                if (response != null) {
+                    return response;
+                }
+            }
+            return remainder == null ? null : remainder.select(method, query, request);
+        }
+    }
+
+
+    private static final class Route implements Comparable<Route> {
+
+        final Variants variants;
+        final String method;
+        final String[] queryNames;
+        final String[] queryValues;  // null when only the presence of the parameter is required
+        final int order;
+
+        Route(Variants variants, String method, String query, int order) {
+            this.variants = variants;
+            this.method = method;
+            this.order = order;
+            String[] parameters = query.isEmpty() ? new String[0] : query.split("&");
+            queryNames = new String[parameters.length];
+            queryValues = new String[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                int eq = parameters[i].indexOf('=');
+                queryNames[i] = eq < 0 ? parameters[i] : parameters[i].substring(0, eq);
+                String value = eq < 0 ? null : parameters[i].substring(eq + 1);
+                queryValues[i] = "*".equals(value) || "{}".equals(value) ? null : value;
+            }
+        }
+
+        boolean matches(String requestMethod, String query) {
+            if (!method.isEmpty() && !method.equals(requestMethod)) {
+                return false;
+            }
+            for (int i = 0; i < queryNames.length; i++) {
+                if (!hasParameter(query, queryNames[i], queryValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean hasParameter(String query, String name, String value) {
+            int start = 0;
+            while (start <= query.length()) {
+                int end = query.indexOf('&', start);
+                if (end < 0) {
+                    end = query.length();
+                }
+                int nameEnd = query.indexOf('=', start);
+                if (nameEnd < 0 || nameEnd > end) {
+                    nameEnd = end;
+                }
+                if (nameEnd - start == name.length() && query.regionMatches(start, name, 0, name.length())) {
+                    if (value == null) {
+                        return true;
+                    }
+                    int valueStart = Math.min(nameEnd + 1, end);
+                    if (end - valueStart == value.length() && query.regionMatches(valueStart, value, 0, value.length())) {
+                        return true;
+                    }
+                }
+                start = end + 1;
+            }
+            return false;
+        }
+
+        // method specific routes first, then the ones with more query predicates, then the latest registered
+        public int compareTo(Route other) {
+            if (method.isEmpty() != other.method.isEmpty()) {
+                return method.isEmpty() ? 1 : -1;
+            }
+            if (queryNames.length != other.queryNames.length) {
+                return other.queryNames.length - queryNames.length;
+            }
+            return other.order - order;
+        }
+    }
+
+
+    private Thread serverThread = null;
+    private ServerSocket serverSocket = null;
+    private volatile boolean serverStarted = false;
+    private ServerSocketFactory serverSocketFactory = null;
+    private int serverPort;
+    private int readTimeOut = 5000;
+    private volatile int maxRequestsPerConnection = 100;
+    private volatile ResponseDelay defaultDelay = ResponseDelay.NONE;
+    private final ScheduledThreadPoolExecutor scheduler = createScheduler();
+    private final AtomicReference<SimpleMockRequest> lastRequest = new AtomicReference<SimpleMockRequest>();
+    private volatile AccessLog accessLog;  // off unless enableAccessLog was called
+    private volatile RequestJournal journal = new RequestJournal(10000, 64L * 1024 * 1024, OverflowPolicy.DROP_OLDEST, null);
+    private volatile RouteTable routes = RouteTable.EMPTY;
+    private AtomicInteger nrOfRequests = new AtomicInteger(0);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final ResponseCache responseCache = new ResponseCache(64L * 1024 * 1024);
+    private final BodyStore bodyStore = new BodyStore();
+    private volatile String adminPath = "/__admin";
+    private long responseDelay;
+    private Set<Method> annotatedMethods;
+    private String packages; // where the annotations are, for example "net.mrkzea.controller"
+    private ExecutionMode executionMode = ExecutionMode.SINGLE_THREADED;
+    private ExecutorService connectionExecutor;
+    private ExecutorService resumeExecutor;  // parked exchanges continue here, never on the timer thread
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] eventLoops;
+    private volatile int maxConnections = Integer.MAX_VALUE;
+    private volatile int maxInFlightRequests = Integer.MAX_VALUE;
+    private volatile int maxHeaderSize = RequestParser.MAX_HEAD_SIZE;
+    private volatile int maxBodySize = Integer.MAX_VALUE;
+    private volatile ConnectionLimitPolicy connectionLimitPolicy = ConnectionLimitPolicy.REJECT;
+    private volatile WireResponse overloaded = errorResponse(503, ServerMetrics.REJECTED, "overloaded", 1);
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final Object connectionSlots = new Object();
+    private volatile int waitingAcceptors;  // changed under connectionSlots, read without it to skip needless notifies
+    private ServerSocket[] acceptorSockets;          // one per acceptor, the same socket repeated when shared
+    private ServerSocketChannel[] acceptorChannels;  // NIO only
+
+
+    private synchronized void waitForServerToStop() {
+        try {
+            wait(5000);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    public void run() {
+        serverThread = Thread.currentThread();
+        for (int i = 1; i < acceptorSockets.length; i++) {
+            int acceptor = i;
+            Thread thread = new Thread(() -> acceptLoop(acceptor), "mock-server-acceptor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        executeLoop();
+    }
+
+
+    private void executeLoop() {
+        serverStarted();
+        try {
+            acceptLoop(0);
+        } finally {
+            serverStopped();
+        }
+    }
+
+
+    private void acceptLoop(int acceptor) {
+        ServerSocket socket = acceptorSockets[acceptor];
+        ServerSocketChannel serverChannel = acceptorChannels == null ? null : acceptorChannels[acceptor];
+        long accepted = acceptor;  // spreads the acceptors over the event loops
+        try {
+            while (true) {
+                if (connectionLimitPolicy == ConnectionLimitPolicy.STOP_ACCEPTING) {
+                    awaitConnectionSlot();
+                }
+                if (serverChannel != null) {
+                    SocketChannel channel = serverChannel.accept();
+                    metrics.connectionAccepted(acceptor);
+                    if (admitConnection()) {
+                        eventLoops[(int) (accepted++ % eventLoops.length)].register(channel);
+                    } else {
+                        reject(channel.socket());
+                    }
+                } else {
+                    Socket connection = socket.accept();
+                    metrics.connectionAccepted(acceptor);
+                    if (admitConnection()) {
+                        dispatch(new HttpProcessor(connection));
+                    } else {
+                        reject(connection);
+                    }
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // the NIO server channel was closed by stopServer
+        } catch (IOException e) {
+            if (e instanceof SocketException) {
+                if (!("Socket closed".equalsIgnoreCase(e.getMessage()) || "Socket is closed"
+                        .equalsIgnoreCase(e.getMessage()))) {
+                    e.printStackTrace();
+                    throw new RuntimeException(e);
+                }
+            } else {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
+    // true when the connection may be served, with STOP_ACCEPTING it waits for a slot instead of failing
+    private boolean admitConnection() {
+        while (true) {
+            int open = openConnections.get();
+            if (open < maxConnections) {
+                if (openConnections.compareAndSet(open, open + 1)) {
+                    return true;
+                }
+            } else if (connectionLimitPolicy == ConnectionLimitPolicy.REJECT || !serverStarted) {
+                return false;
+            } else {
+                awaitConnectionSlot();
+            }
+        }
+    }
+
+
+    private void releaseConnection() {
+        openConnections.decrementAndGet();
+        if (waitingAcceptors > 0) {
+            synchronized (connectionSlots) {
+                connectionSlots.notifyAll();
+            }
+        }
+    }
+
+
+    private void awaitConnectionSlot() {
+        synchronized (connectionSlots) {
+            waitingAcceptors++;
+            try {
+                while (serverStarted && openConnections.get() >= maxConnections) {
+                    connectionSlots.wait(100);
+                }
+            } catch (InterruptedException e) {
+                // stopServer, the next accept fails on the closed socket
+            } finally {
+                waitingAcceptors--;
+            }
+        }
+    }
+
+
+    // the request is left unread, see closeLingering
+    private void reject(Socket socket) {
+        metrics.connectionRejected();
+        try {
+            overloaded.writeTo(socket.getOutputStream(), false);
+            closeLingering(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+        }
+    }
+
+
+    // for answers sent before the request was read to its end: the FIN goes out with the answer and the socket is
+    // closed a little later, so the client reads the answer before the reset caused by the unread request
+    private void closeLingering(Socket socket) {
+        try {
+            socket.shutdownOutput();
+            scheduler.schedule(() -> closeQuietly(socket), LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException | RejectedExecutionException e) {
+            closeQuietly(socket);
+        }
+    }
+
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+
+    // false when setMaxInFlightRequests exchanges are being served, the request is then answered with 503
+    private boolean admitRequest() {
+        while (true) {
+            int current = inFlightRequests.get();
+            if (current >= maxInFlightRequests) {
+                metrics.requestShed();
+                return false;
+            }
+            if (inFlightRequests.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+
+    private static WireResponse errorResponse(int status, String route, String message, int retryAfter) {
+        SimpleMockResponse response = new SimpleMockResponse();
+        response.setResponseUrl(route);
+        response.setResponseCode(status);
+        response.setResponseDelay(ResponseDelay.NONE);
+        response.setResponseContent("{\"error\":\"" + message + "\"}");
+        if (retryAfter > 0) {
+            response.setMockResponseHeader("Retry-After", Integer.toString(retryAfter));
+        }
+        return response.compile();
+    }
+
+
+    private static final WireResponse HEADER_TOO_LARGE = errorResponse(431, ServerMetrics.REJECTED, "request header too large", 0);
+    private static final WireResponse BODY_TOO_LARGE = errorResponse(413, ServerMetrics.REJECTED, "request body too large", 0);
+
+
+    // called by the acceptors; an exchange failing inline must not end the acceptor, and a full pool is answered
+    // with a 503 rather than served on the acceptor, which would hold up accept() for the whole connection
+    private void dispatch(HttpProcessor processor) {
+        if (connectionExecutor == null) {
+            task(processor).run();
+            return;
+        }
+        try {
+            connectionExecutor.execute(task(processor));
+        } catch (RejectedExecutionException e) {
+            if (connectionExecutor.isShutdown()) {
+                processor.close();
+            } else {
+                processor.reject();
+            }
+        }
+    }
+
+
+    // called by the timer when a delay or a stream pause is over; a full pool is retried a little later rather
+    // than running blocking socket I/O on the timer thread, which would hold up every other delay
+    private void resume(HttpProcessor processor) {
+        try {
+            resumeExecutor.execute(task(processor));
+        } catch (RejectedExecutionException e) {
+            if (resumeExecutor.isShutdown()) {
+                processor.close();
+                return;
+            }
+            try {
+                scheduler.schedule(() -> resume(processor), 10, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException stopped) {
+                processor.close();
+            }
+        }
+    }
+
+
+    private static Runnable task(HttpProcessor processor) {
+        return () -> {
+            try {
+                processor.run();
+            } catch (RuntimeException e) {
+                // already reported by the processor, must not kill the worker
+            }
+        };
+    }
+
+
+    private synchronized void serverStarted() {
+        notifyAll();
+    }
+
+
+    private synchronized void serverStopped() {
+        notifyAll();
+    }
+
+
+    public synchronized void stopServer() {
+        lastRequest.set(null);
+        routes = null;
+        SHARED.values().remove(this);
+
+        if (!serverStarted) {
+            return;
+        }
+
+        try {
+            serverStarted = false;
+            serverThread.interrupt();
+            for (ServerSocket socket : acceptorSockets) {
+                socket.close();
+            }
+            waitForServerToStop();
+            scheduler.shutdownNow();
+            journal.close();
+            disableAccessLog();
+            bodyStore.deleteFiles();
+            if (connectionExecutor != null) {
+                connectionExecutor.shutdownNow();
+            }
+            resumeExecutor.shutdownNow();
+            if (eventLoops != null) {
+                for (NioEventLoop loop : eventLoops) {
+                    loop.shutdown();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    public static class SimpleMockRequest {
+
+        private final String method;
+        private final String url;
+        private final String protocol;
+        private final byte[] head;     // raw header lines, only decoded when headers are asked for
+        private final int[] fields;    // name start, name end, value start, value end per header in head
+        private volatile Map<String, List<String>> headers;
+        private final byte[] content;
+        private final File spilledContent;  // instead of content for bodies over the in-memory limit
+        private final long contentLength;
+        private volatile String contentDigest;
+        private volatile Object contentJson;  // parsed on the first JSON body matcher
+        private final boolean keepAlive;
+        private final long receivedAt;
+
+        public SimpleMockRequest(String method, String url, Map<String, List<String>> headers, byte[] content) {
+            this(method, url, "HTTP/1.1", headers, content);
+        }
+
+        public SimpleMockRequest(String method, String url, String protocol, Map<String, List<String>> headers, byte[] content) {
+            this.method = method;
+            this.url = url;
+            this.protocol = protocol;
+            this.head = null;
+            this.fields = null;
+            Map<String, List<String>> copy = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            headers.forEach((name, values) -> copy.put(name, Collections.unmodifiableList(new ArrayList<String>(values))));
+            this.headers = Collections.unmodifiableMap(copy);
+            this.content = content;
+            this.spilledContent = null;
+            this.contentLength = content.length;
+            this.keepAlive = keepAliveFor(protocol, getHeader("Connection"));
+            this.receivedAt = System.currentTimeMillis();
+        }
+
+        SimpleMockRequest(String method, String url, String protocol, byte[] head, int[] fields, byte[] content,
+                          boolean keepAlive) {
+            this.method = method;
+            this.url = url;
+            this.protocol = protocol;
+            this.head = head;
+            this.fields = fields;
+            this.content = content;
+            this.spilledContent = null;
+            this.contentLength = content.length;
+            this.keepAlive = keepAlive;
+            this.receivedAt = System.currentTimeMillis();
+        }
+
+        SimpleMockRequest(String method, String url, String protocol, byte[] head, int[] fields, File spilledContent,
+                          long contentLength, String contentDigest, boolean keepAlive) {
+            this.method = method;
+            this.url = url;
+            this.protocol = protocol;
+            this.head = head;
+            this.fields = fields;
+            this.content = null;
+            this.spilledContent = spilledContent;
+            this.contentLength = contentLength;
+            this.contentDigest = contentDigest;
+            this.keepAlive = keepAlive;
+            this.receivedAt = System.currentTimeMillis();
+        }
+
+        private SimpleMockRequest(SimpleMockRequest request) {
+            this.method = request.method;
+            this.url = request.url;
+            this.protocol = request.protocol;
+            this.head = request.head;
+            this.fields = request.fields;
+            this.headers = request.headers;
+            this.content = new byte[0];
+            this.spilledContent = null;
+            this.contentLength = 0;
+            this.keepAlive = request.keepAlive;
+            this.receivedAt = request.receivedAt;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            Map<String, List<String>> decoded = headers;
+            if (decoded == null) {
+                Map<String, List<String>> map = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+                for (int i = 0; i < fields.length; i += 4) {
+                    map.computeIfAbsent(field(i), k -> new ArrayList<String>()).add(field(i + 2));
+                }
+                map.replaceAll((name, values) -> Collections.unmodifiableList(values));
+                decoded = Collections.unmodifiableMap(map);
+                headers = decoded;
+            }
+            return decoded;
+        }
+
+        public String getHeader(String name) {
+            if (headers != null || head == null) {
+                List<String> values = getHeaders().get(name);
+                return (values == null || values.isEmpty()) ? null : values.get(0);
+            }
+            for (int i = 0; i < fields.length; i += 4) {
+                if (RequestParser.equalsIgnoreCase(head, fields[i], fields[i + 1], name)) {
+                    return field(i + 2);
+                }
+            }
+            return null;
+        }
+
+        private String field(int index) {
+            return new String(head, fields[index], fields[index + 1] - fields[index], StandardCharsets.ISO_8859_1);
+        }
+
+        // a full copy, large bodies are better read with openContent
+        public byte[] getContent() {
+            if (content != null) {
+                return content.clone();
+            }
+            try {
+                return Files.readAllBytes(spilledContent.toPath());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public InputStream openContent() {
+            if (content != null) {
+                return new ByteArrayInputStream(content);
+            }
+            try {
+                return new BufferedInputStream(new FileInputStream(spilledContent), 64 * 1024);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        // hex SHA-256 of the body, computed while spilling or on first use
+        public String getContentDigest() {
+            String digest = contentDigest;
+            if (digest == null) {
+                MessageDigest sha = BodySink.sha256();
+                sha.update(content);
+                digest = BodySink.hex(sha.digest());
+                contentDigest = digest;
+            }
+            return digest;
+        }
+
+        // Json.MISSING when the body is not JSON
+        Object contentJson() {
+            Object json = contentJson;
+            if (json == null) {
+                try (Reader reader = new InputStreamReader(openContent(), StandardCharsets.UTF_8)) {
+                    json = Json.parse(reader);
+                } catch (IllegalArgumentException | IOException e) {
+                    json = Json.MISSING;
+                }
+                contentJson = json;
+            }
+            return json;
+        }
+
+        // true when the body was written to a temp file instead of being kept in memory
+        public boolean isContentSpilled() {
+            return spilledContent != null;
+        }
+
+        // once the journal lets go of the request, its body can no longer be read
+        void deleteSpilledContent() {
+            if (spilledContent != null) {
+                spilledContent.delete();
+            }
+        }
+
+        // bytes of heap held by the body
+        int contentLength() {
+            return content == null ? 0 : content.length;
+        }
+
+        SimpleMockRequest withoutContent() {
+            return new SimpleMockRequest(this);
+        }
+
+        byte[] rawHead() {
+            if (head != null) {
+                return head;
+            }
+            StringBuilder lines = new StringBuilder();
+            getHeaders().forEach((name, values) -> values.forEach(v -> lines.append(name).append(": ").append(v).append("\r\n")));
+            return lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        // decoded as UTF-8
+        public String getContentAsString() {
+            return new String(content != null ? content : getContent(), StandardCharsets.UTF_8);
+        }
+
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public boolean isKeepAliveRequested() {
+            return keepAlive;
+        }
+
+        static boolean keepAliveFor(String protocol, String connection) {
+            if (connection != null) {
+                for (String token : connection.split(",")) {
+                    if ("close".equalsIgnoreCase(token.trim())) {
+                        return false;
+                    }
+                    if ("keep-alive".equalsIgnoreCase(token.trim())) {
+                        return true;
+                    }
+                }
+            }
+            return !"HTTP/1.0".equals(protocol);
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + url;
+        }
+    }
+
+
+    private class HttpProcessor {
+
+        private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+        private Socket socket;
+        private final int maxRequests;
+        private final RequestParser parser = new RequestParser();
+        private RequestParser.PendingRequest pending;  // body still arriving
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int start;  // first unparsed byte in buffer
+        private int end;    // end of the bytes read so far
+        private InputStream is;
+        private BufferedOutputStream os;
+        private int served;
+        private WireResponse delayedResponse;  // parked on the scheduler, written when run() resumes
+        private boolean delayedKeepAlive;
+        private long delayedAt;
+        private ChunkedStream stream;  // chunked body in progress, continued when run() resumes
+        private boolean inFlight;      // holds one of the setMaxInFlightRequests slots
+        private boolean lingering;     // answered before the request was read, see closeLingering
+        private boolean closed;
+
+        public HttpProcessor(Socket socket) throws SocketException {
+            // a persistent connection would block the accept loop when serving inline
+            maxRequests = connectionExecutor == null ? 1 : Math.max(1, maxRequestsPerConnection);
+            socket.setSoTimeout(readTimeOut);
+            socket.setKeepAlive(maxRequests > 1);
+            socket.setTcpNoDelay(true);
+            this.socket = socket;
+            parser.limits(maxHeaderSize, maxBodySize, bodyStore);
+            metrics.connectionOpened();
+        }
+
+        // returns early without holding the thread while a delayed response is parked on the scheduler
+        public void run() {
+            boolean parked = false;
+            try {
+                if (is == null) {
+                    is = socket.getInputStream();
+                    os = new BufferedOutputStream(socket.getOutputStream());
+                }
+                boolean keepAlive = true;
+                if (stream != null) {
+                    keepAlive = stream.keepAlive;
+                    if (!writeChunks()) {
+                        parked = true;
+                        return;
+                    }
+                } else if (delayedResponse != null) {
+                    WireResponse response = delayedResponse;
+                    delayedResponse = null;
+                    keepAlive = delayedKeepAlive;
+                    metrics.record(Phase.DELAY, System.nanoTime() - delayedAt);
+                    if (!processResponse(response, keepAlive)) {
+                        parked = true;
+                        return;
+                    }
+                }
+                while (keepAlive && !closed) {
+                    SimpleMockRequest request;
+                    try {
+                        request = processRequest(is);
+                    } catch (SocketTimeoutException e) {
+                        if (served == 0) {
+                            throw e;
+                        }
+                        return; // idle persistent connection
+                    } catch (RequestTooLargeException e) {
+                        metrics.requestTooLarge();
+                        processResponse(e.response(), false);
+                        lingering = true;
+                        return;
+                    }
+                    if (request == null) {
+                        return;
+                    }
+                    served++;
+                    keepAlive = served < maxRequests && request.isKeepAliveRequested();
+                    WireResponse response;
+                    if (admitRequest()) {
+                        inFlight = true;
+                        response = findResponse(request);
+                    } else {
+                        response = overloaded;
+                        keepAlive = false;
+                    }
+                    recordRequest(request, response);
+                    long delay = delayFor(response);
+                    if (delay > 0) {
+                        os.flush();
+                        delayedResponse = response;
+                        delayedKeepAlive = keepAlive;
+                        delayedAt = System.nanoTime();
+                        scheduler.schedule(() -> resume(this), delay, TimeUnit.MILLISECONDS);
+                        parked = true;
+                        return;
+                    }
+                    metrics.record(Phase.DELAY, 0);
+                    if (!processResponse(response, keepAlive)) {
+                        parked = true;
+                        return;
+                    }
+                }
+            } catch (RejectedExecutionException e) {
+                // the server is stopping
+            } catch (IOException e) {
+                if (e instanceof SocketException) {
+                    if (!("socket closed".equalsIgnoreCase(e.getMessage()))) {
+                        e.printStackTrace();
+                        throw new RuntimeException(e);
+                    }
+                } else {
+                    e.printStackTrace();
+                    throw new RuntimeException(e);
+                }
+            } finally {
+                if (!parked) {
+                    close();
+                }
+            }
+        }
+
+        // answer pipelined requests first and flush them together
+        private void flushIfIdle(boolean keepAlive) throws IOException {
+            if (!keepAlive || (start == end && is.available() == 0)) {
+                os.flush();
+            }
+        }
+
+        private void finishExchange() {
+            if (inFlight) {
+                inFlight = false;
+                inFlightRequests.decrementAndGet();
+            }
+        }
+
+        // the pool had no room, the request is left unread
+        void reject() {
+            metrics.connectionRejected();
+            lingering = true;
+            try {
+                overloaded.writeTo(socket.getOutputStream(), false);
+            } catch (IOException ignored) {
+                // closed below
+            }
+            close();
+        }
+
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                metrics.connectionClosed();
+                releaseConnection();
+                finishExchange();
+                if (pending != null) {
+                    pending.discard();
+                }
+            }
+            if (lingering) {
+                closeLingering(socket);
+                return;
+            }
+            try {
+                if (!socket.isClosed()) {
+                    socket.shutdownOutput();
+                    socket.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private SimpleMockRequest processRequest(InputStream is) throws IOException {
+            long parseStart = System.nanoTime();
+            SimpleMockRequest request = parseBuffered();
+            while (request == null) {
+                if (end == buffer.length) {
+                    if (start > 0) {
+                        System.arraycopy(buffer, start, buffer, 0, end - start);
+                        end -= start;
+                        start = 0;
+                    } else {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                }
+                int read = is.read(buffer, end, buffer.length - end);
+                if (read < 0) {
+                    return null;
+                }
+                end += read;
+                metrics.bytesIn(read);
+                parseStart = System.nanoTime();
+                request = parseBuffered();
+            }
+            metrics.record(Phase.PARSE, System.nanoTime() - parseStart);
+            return request;
+        }
+
+        // body bytes are consumed as they arrive, so the buffer only has to hold a request head
+        private SimpleMockRequest parseBuffered() {
+            SimpleMockRequest request;
+            if (pending != null) {
+                request = pending.feed(buffer, start, end - start);
+                start += pending.consumed();
+                if (request != null) {
+                    pending = null;
+                }
+            } else {
+                request = parser.parse(buffer, start, end - start);
+                start += parser.consumed();
+                pending = parser.takePending();
+            }
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+            return request;
+        }
+
+        // false when a chunked body was started and continues on the timer
+        private boolean processResponse(WireResponse response, boolean keepAlive) throws IOException {
+            ResponseFault fault = response.fault();
+            if (fault != null) {
+                return injectFault(response, fault);
+            }
+            if (response.chunkSize > 0) {
+                ByteBuffer head = response.head(keepAlive);
+                metrics.bytesOut(head.remaining());
+                WireResponse.write(os, head);
+                stream = new ChunkedStream(response, keepAlive);
+                return writeChunks();
+            }
+            // counted before any byte is written, large bodies bypass the buffer and reach the client in writeTo
+            metrics.recordResponse(response.route, response.status);
+            nrOfRequests.getAndAdd(1);
+            long writeStart = System.nanoTime();
+            response.writeTo(os, keepAlive);
+            flushIfIdle(keepAlive);
+            metrics.record(Phase.WRITE, System.nanoTime() - writeStart);
+            metrics.bytesOut(response.length(keepAlive));
+            finishExchange();
+            return true;
+        }
+
+        // the connection ends with every fault; false when it continues on the timer
+        private boolean injectFault(WireResponse response, ResponseFault fault) throws IOException {
+            metrics.faultInjected(fault.type);
+            os.flush();
+            switch (fault.type) {
+                case RESET:
+                    socket.setSoLinger(true, 0);
+                    socket.close();
+                    close();
+                    return true;
+                case NO_RESPONSE:
+                    scheduler.schedule(this::close, fault.millis, TimeUnit.MILLISECONDS);
+                    return false;
+                case TRICKLE:
+                    stream = new ChunkedStream(response, fault);
+                    return writeChunks();
+                default:
+                    for (ByteBuffer buffer : response.faultBuffers(fault)) {
+                        metrics.bytesOut(buffer.remaining());
+                        WireResponse.write(os, buffer);
+                    }
+                    os.flush();
+                    close();
+                    return true;
+            }
+        }
+
+        // writes the chunks that are due, false when the rest is scheduled
+        private boolean writeChunks() throws IOException {
+            ChunkedStream current = stream;
+            while (true) {
+                long writeStart = System.nanoTime();
+                ByteBuffer[] buffers = current.next();
+                if (current.isDone()) {
+                    metrics.recordResponse(current.response.route, current.response.status);
+                    nrOfRequests.getAndAdd(1);
+                }
+                for (ByteBuffer buffer : buffers) {
+                    metrics.bytesOut(buffer.remaining());
+                    WireResponse.write(os, buffer);
+                }
+                os.flush();
+                current.writeNanos += System.nanoTime() - writeStart;
+                if (current.isDone()) {
+                    break;
+                }
+                long pause = current.pause();
+                if (pause > 0) {
+                    scheduler.schedule(() -> resume(this), pause, TimeUnit.MILLISECONDS);
+                    return false;
+                }
+            }
+            stream = null;
+            metrics.record(Phase.WRITE, current.writeNanos);
+            finishExchange();
+            return true;
+        }
+
+    }
+
+
+    private WireResponse findResponse(SimpleMockRequest request) {
+        long routeStart = System.nanoTime();
+        String admin = adminPath;
+        if (admin != null && isAdminUrl(request.getUrl(), admin)) {
+            return adminResponse(request, admin);
+        }
+        RouteTable table = routes;
+        SimpleMockResponse response = table == null ? null : table.find(request);
+        WireResponse wire = response == null ? WireResponse.NOT_FOUND
+                : response.responseResource != null ? responseCache.get(response) : response.wire();
+        metrics.record(Phase.ROUTE, System.nanoTime() - routeStart);
+        return wire.negotiate(request).conditional(request);
+    }
+
+
+    // only the admin resources themselves, other urls below or next to the admin path are routed as usual
+    private static boolean isAdminUrl(String url, String admin) {
+        if (!url.startsWith(admin)) {
+            return false;
+        }
+        String path = url.substring(admin.length());
+        return "/metrics".equals(path) || "/metrics/reset".equals(path);
+    }
+
+
+    // built per request, the admin endpoint is not on the hot path
+    private WireResponse adminResponse(SimpleMockRequest request, String admin) {
+        SimpleMockResponse response = new SimpleMockResponse();
+        response.setResponseUrl(ServerMetrics.ADMIN);
+        response.setResponseDelay(ResponseDelay.NONE);
+        response.setResponseCompression(false);
+        String path = request.getUrl().substring(admin.length());
+        if ("/metrics".equals(path) && "GET".equals(request.getMethod())) {
+            response.setResponseContent(metrics.toJson());
+        } else if ("/metrics/reset".equals(path) && "POST".equals(request.getMethod())) {
+            metrics.reset();
+            response.setResponseContent("{}");
+        } else {
+            response.setResponseCode(404);
+            response.setResponseContent("{\"error\":\"unknown admin resource\"}");
+        }
+        return response.compile();
+    }
+
+
+    private long delayFor(WireResponse response) {
+        return (response.delay != null ? response.delay : defaultDelay).nextMillis();
+    }
+
+
+    private void recordRequest(SimpleMockRequest request, WireResponse response) {
+        lastRequest.set(request);
+        journal.record(request, response.route, response.status);
+        AccessLog log = accessLog;
+        if (log != null) {
+            log.add(request, response.route, response.status);
+        }
+    }
+
+    static class RequestTooLargeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int status;  // 431 for the head, 413 for the body
+
+        RequestTooLargeException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        WireResponse response() {
+            return status == 431 ? HEADER_TOO_LARGE : BODY_TOO_LARGE;
+        }
+    }
+
+
+    static class RequestParser {
+
+        static final int MAX_HEAD_SIZE = 64 * 1024;
+
+        private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] CLOSE = "close".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.ISO_8859_1);
+        private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "TRACE"};
+
+        private int consumed;
+        private int[] fields = new int[64];  // reused between requests, see SimpleMockRequest
+        private int maxHeadSize = MAX_HEAD_SIZE;
+        private int maxBodySize = Integer.MAX_VALUE;
+        private BodyStore store = BodyStore.DEFAULT;
+        private PendingRequest pending;
+
+        void limits(int maxHeadSize, int maxBodySize, BodyStore store) {
+            this.maxHeadSize = maxHeadSize;
+            this.maxBodySize = maxBodySize;
+            this.store = store;
+        }
+
+        // parses one request from buf[off, off + len), returns null when more input is needed;
+        // consumed() counts the bytes used either way, see takePending
+        SimpleMockRequest parse(byte[] buf, int off, int len) {
+            consumed = 0;
+            int end = off + len;
+            int pos = off;
+            while (pos < end && (buf[pos] == '\r' || buf[pos] == '\n')) {
+                pos++;
+            }
+            int lineEnd = indexOf(buf, pos, end, (byte) '\n');
+            if (lineEnd < 0) {
+                checkHeadSize(end - off);
+                return null;
+            }
+            int requestLineStart = pos;
+            int requestLineStop = trimCr(buf, pos, lineEnd);
+            int methodEnd = indexOf(buf, pos, requestLineStop, (byte) ' ');
+            int urlEnd = methodEnd < 0 ? -1 : indexOf(buf, methodEnd + 1, requestLineStop, (byte) ' ');
+            if (methodEnd <= pos || urlEnd == methodEnd + 1) {
+                throw new RuntimeException("illegal http request");
+            }
+            if (urlEnd < 0) {
+                urlEnd = requestLineStop;
+            }
+            int headStart = lineEnd + 1;
+
+            // header boundaries are recorded as offsets relative to headStart
+            int fieldCount = 0;
+            long contentLength = -1;
+            boolean chunked = false;
+            int connection = 0;  // 1 close, 2 keep-alive
+            pos = headStart;
+            while (true) {
+                lineEnd = indexOf(buf, pos, end, (byte) '\n');
+                if (lineEnd < 0) {
+                    checkHeadSize(end - off);
+                    return null;
+                }
+                int lineStop = trimCr(buf, pos, lineEnd);
+                if (lineStop == pos) {
+                    break;
+                }
+                int colon = indexOf(buf, pos, lineStop, (byte) ':');
+                if (colon > pos) {
+                    int nameEnd = colon;
+                    while (nameEnd > pos && buf[nameEnd - 1] == ' ') {
+                        nameEnd--;
+                    }
+                    int valueStart = colon + 1;
+                    while (valueStart < lineStop && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+                        valueStart++;
+                    }
+                    int valueEnd = lineStop;
+                    while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+                        valueEnd--;
+                    }
+                    if (fieldCount + 4 > fields.length) {
+                        fields = Arrays.copyOf(fields, fields.length * 2);
+                    }
+                    fields[fieldCount++] = pos - headStart;
+                    fields[fieldCount++] = nameEnd - headStart;
+                    fields[fieldCount++] = valueStart - headStart;
+                    fields[fieldCount++] = valueEnd - headStart;
+
+                    if (equalsIgnoreCase(buf, pos, nameEnd, CONTENT_LENGTH)) {
+                        contentLength = parseDecimal(buf, valueStart, valueEnd);
+                    } else if (equalsIgnoreCase(buf, pos, nameEnd, TRANSFER_ENCODING)) {
+                        chunked = containsIgnoreCase(buf, valueStart, valueEnd, CHUNKED);
+                    } else if (equalsIgnoreCase(buf, pos, nameEnd, CONNECTION)) {
+                        connection = containsIgnoreCase(buf, valueStart, valueEnd, CLOSE) ? 1
+                                : containsIgnoreCase(buf, valueStart, valueEnd, KEEP_ALIVE) ? 2 : connection;
+                    }
+                }
+                pos = lineEnd + 1;
+            }
+            int headEnd = pos;
+            pos = lineEnd + 1;
+            checkHeadSize(pos - off);
+            if (contentLength > maxBodySize) {
+                throw new RequestTooLargeException(413, "request body exceeds " + maxBodySize + " bytes");
+            }
+
+            String method = method(buf, requestLineStart, methodEnd);
+            String url = new String(buf, methodEnd + 1, urlEnd - methodEnd - 1, StandardCharsets.ISO_8859_1);
+            String protocol = urlEnd == requestLineStop ? "HTTP/1.0" : protocol(buf, urlEnd + 1, requestLineStop);
+            boolean keepAlive = connection == 0 ? !"HTTP/1.0".equals(protocol) : connection == 2;
+            byte[] head = Arrays.copyOfRange(buf, headStart, headEnd);
+            int[] headFields = Arrays.copyOf(fields, fieldCount);
+            if (!chunked && contentLength <= 0) {
+                consumed = pos - off;
+                return new SimpleMockRequest(method, url, protocol, head, headFields, new byte[0], keepAlive);
+            }
+            if (!chunked && contentLength <= end - pos && contentLength <= store.memoryLimit()) {
+                consumed = pos - off + (int) contentLength;
+                return new SimpleMockRequest(method, url, protocol, head, headFields,
+                        Arrays.copyOfRange(buf, pos, pos + (int) contentLength), keepAlive);
+            }
+            // the body is read as it arrives instead of waiting for all of it in the connection buffer
+            PendingRequest request = new PendingRequest(method, url, protocol, head, headFields, keepAlive,
+                    new BodyReader(chunked, contentLength, maxBodySize, new BodySink(store)));
+            SimpleMockRequest complete = request.feed(buf, pos, end - pos);
+            consumed = pos - off + request.consumed();
+            if (complete == null) {
+                this.pending = request;
+            }
+            return complete;
+        }
+
+        // a request whose body did not arrive with its head, continued by the connection with feed
+        PendingRequest takePending() {
+            PendingRequest request = pending;
+            pending = null;
+            return request;
+        }
+
+        int consumed() {
+            return consumed;
+        }
+
+        // common methods are returned as constants instead of new strings
+        private static String method(byte[] buf, int start, int stop) {
+            for (String method : METHODS) {
+                if (method.length() == stop - start && startsWith(buf, start, stop, method)) {
+                    return method;
+                }
+            }
+            return new String(buf, start, stop - start, StandardCharsets.ISO_8859_1);
+        }
+
+        private static String protocol(byte[] buf, int start, int stop) {
+            if (stop - start == 8 && startsWith(buf, start, stop, "HTTP/1.1")) {
+                return "HTTP/1.1";
+            }
+            if (stop - start == 8 && startsWith(buf, start, stop, "HTTP/1.0")) {
+                return "HTTP/1.0";
+            }
+            return new String(buf, start, stop - start, StandardCharsets.ISO_8859_1);
+        }
+
+        static final class PendingRequest {
+
+            private final String method;
+            private final String url;
+            private final String protocol;
+            private final byte[] head;
+            private final int[] fields;
+            private final boolean keepAlive;
+            private final BodyReader body;
+            private int consumed;
+
+            PendingRequest(String method, String url, String protocol, byte[] head, int[] fields, boolean keepAlive,
+                           BodyReader body) {
+                this.method = method;
+                this.url = url;
+                this.protocol = protocol;
+                this.head = head;
+                this.fields = fields;
+                this.keepAlive = keepAlive;
+                this.body = body;
+            }
+
+            // takes body bytes from buf[off, off + len), returns the request once the body is complete
+            SimpleMockRequest feed(byte[] buf, int off, int len) {
+                try {
+                    consumed = body.feed(buf, off, len);
+                } catch (RuntimeException e) {
+                    discard();
+                    throw e;
+                }
+                if (!body.isDone()) {
+                    return null;
+                }
+                BodySink sink = body.sink;
+                return sink.isSpilled()
+                        ? new SimpleMockRequest(method, url, protocol, head, fields, sink.file(), sink.length(), sink.finishDigest(), keepAlive)
+                        : new SimpleMockRequest(method, url, protocol, head, fields, sink.toByteArray(), keepAlive);
+            }
+
+            int consumed() {
+                return consumed;
+            }
+
+            // the connection closed before the body was complete
+            void discard() {
+                body.sink.discard();
+            }
+        }
+
+
+        // Content-Length or chunked framing, decoded incrementally into a BodySink
+        static final class BodyReader {
+
+            private static final int SIZE = 0, DATA = 1, DATA_END = 2, TRAILER = 3, DONE = 4;
+            private static final int MAX_LINE = 8 * 1024;
+
+            private final boolean chunked;
+            private final int maxBodySize;
+            private final BodySink sink;
+            private long remaining;  // of the body, or of the current chunk
+            private int state;
+
+            BodyReader(boolean chunked, long contentLength, int maxBodySize, BodySink sink) {
+                this.chunked = chunked;
+                this.maxBodySize = maxBodySize;
+                this.sink = sink;
+                this.remaining = chunked ? 0 : contentLength;
+                this.state = chunked ? SIZE : DATA;
+            }
+
+            boolean isDone() {
+                return state == DONE;
+            }
+
+            // returns the number of bytes used, an incomplete chunk line is left for the next call
+            int feed(byte[] buf, int off, int len) {
+                int end = off + len;
+                int pos = off;
+                while (state != DONE) {
+                    if (state == DATA) {
+                        int n = (int) Math.min(remaining, end - pos);
+                        if (n > 0) {
+                            sink.write(buf, pos, n);
+                            pos += n;
+                            remaining -= n;
+                        }
+                        if (remaining > 0) {
+                            break;
+                        }
+                        state = chunked ? DATA_END : DONE;
+                        continue;
+                    }
+                    int lineEnd = indexOf(buf, pos, end, (byte) '\n');
+                    if (lineEnd < 0) {
+                        if (end - pos > MAX_LINE) {
+                            throw new RuntimeException("illegal chunked body");
+                        }
+                        break;
+                    }
+                    int lineStop = trimCr(buf, pos, lineEnd);
+                    if (state == SIZE) {
+                        int chunkLen = parseHex(buf, pos, lineStop);
+                        if (sink.length() + chunkLen > maxBodySize) {
+                            throw new RequestTooLargeException(413, "request body exceeds " + maxBodySize + " bytes");
+                        }
+                        remaining = chunkLen;
+                        state = chunkLen == 0 ? TRAILER : DATA;
+                    } else if (state == DATA_END) {
+                        state = SIZE;
+                    } else if (lineStop == pos) {
+                        state = DONE;  // the empty line after the trailers
+                    }
+                    pos = lineEnd + 1;
+                }
+                return pos - off;
+            }
+        }
+
+        private void checkHeadSize(int size) {
+            if (size > maxHeadSize) {
+                throw new RequestTooLargeException(431, "request header exceeds " + maxHeadSize + " bytes");
+            }
+        }
+
+        private static long parseDecimal(byte[] buf, int start, int stop) {
+            if (start == stop) {
+                throw new NumberFormatException("empty Content-Length");
+            }
+            long value = 0;
+            for (int i = start; i < stop; i++) {
+                int digit = buf[i] - '0';
+                if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                    throw new NumberFormatException("illegal Content-Length");
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        private static int parseHex(byte[] buf, int start, int stop) {
+            int value = 0;
+            int i = start;
+            for (; i < stop && buf[i] != ';' && buf[i] != ' '; i++) {
+                int digit = Character.digit(buf[i], 16);
+                if (digit < 0 || value > (Integer.MAX_VALUE >> 4)) {
+                    throw new NumberFormatException("illegal chunk size");
+                }
+                value = (value << 4) + digit;
+            }
+            if (i == start) {
+                throw new NumberFormatException("empty chunk size");
+            }
+            return value;
+        }
+
+        private static boolean startsWith(byte[] buf, int start, int stop, String prefix) {
+            if (stop - start < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (buf[start + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static boolean equalsIgnoreCase(byte[] buf, int start, int stop, byte[] lowerCase) {
+            if (stop - start != lowerCase.length) {
+                return false;
+            }
+            for (int i = 0; i < lowerCase.length; i++) {
+                if (toLower(buf[start + i]) != lowerCase[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static boolean equalsIgnoreCase(byte[] buf, int start, int stop, String name) {
+            if (stop - start != name.length()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (toLower(buf[start + i]) != Character.toLowerCase(name.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean containsIgnoreCase(byte[] buf, int start, int stop, byte[] lowerCase) {
+            for (int i = start; i <= stop - lowerCase.length; i++) {
+                if (equalsIgnoreCase(buf, i, i + lowerCase.length, lowerCase)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int toLower(byte b) {
+            return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+        }
+
+        private static int trimCr(byte[] buf, int start, int lineEnd) {
+            return (lineEnd > start && buf[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+        }
+
+        private static int indexOf(byte[] buf, int from, int to, byte b) {
+            for (int i = from; i < to; i++) {
+                if (buf[i] == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+
+
+
+    // pooled buffers and the temp directory for request bodies that arrive over several reads
+    static final class BodyStore {
+
+        static final BodyStore DEFAULT = new BodyStore();
+        static final int CHUNK_SIZE = 16 * 1024;
+        private static final int MAX_POOLED = 256;
+
+        private final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private volatile int memoryLimit = 1024 * 1024;
+        private volatile File directory;  // created on the first spill
+        private File configuredDirectory;
+
+        int memoryLimit() {
+            return memoryLimit;
+        }
+
+        void setMemoryLimit(int bytes) {
+            memoryLimit = bytes;
+        }
+
+        synchronized void setDirectory(File directory) {
+            configuredDirectory = directory;
+            this.directory = null;
+        }
+
+        byte[] acquire() {
+            byte[] chunk = pool.poll();
+            if (chunk == null) {
+                return new byte[CHUNK_SIZE];
+            }
+            pooled.decrementAndGet();
+            return chunk;
+        }
+
+        void release(byte[] chunk) {
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.add(chunk);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+
+        File newFile() throws IOException {
+            return Files.createTempFile(directory().toPath(), "body-", ".tmp").toFile();
+        }
+
+        private synchronized File directory() throws IOException {
+            if (directory == null) {
+                directory = configuredDirectory != null
+                        ? Files.createDirectories(configuredDirectory.toPath()).toFile()
+                        : Files.createTempDirectory("mock-server-bodies").toFile();
+            }
+            return directory;
+        }
+
+        // removes the spilled bodies, requests still holding one can no longer read it
+        void deleteFiles() {
+            File current = directory;
+            File[] files = current == null ? null : current.listFiles((dir, name) -> name.startsWith("body-"));
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    // collects a body in pooled chunks up to the store's memory limit, then streams it to a temp file
+    static final class BodySink {
+
+        private final BodyStore store;
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        private int chunkPosition = BodyStore.CHUNK_SIZE;
+        private long length;
+        private File file;
+        private OutputStream out;
+        private MessageDigest digest;
+
+        BodySink(BodyStore store) {
+            this.store = store;
+        }
+
+        void write(byte[] buf, int off, int len) {
+            try {
+                if (out == null && length + len > store.memoryLimit()) {
+                    spill();
+                }
+                length += len;
+                if (out != null) {
+                    out.write(buf, off, len);
+                    digest.update(buf, off, len);
+                    return;
+                }
+                while (len > 0) {
+                    if (chunkPosition == BodyStore.CHUNK_SIZE) {
+                        chunks.add(store.acquire());
+                        chunkPosition = 0;
+                    }
+                    int n = Math.min(len, BodyStore.CHUNK_SIZE - chunkPosition);
+                    System.arraycopy(buf, off, chunks.get(chunks.size() - 1), chunkPosition, n);
+                    chunkPosition += n;
+                    off += n;
+                    len -= n;
+                }
+            } catch (IOException e) {
+                discard();
+                throw new RuntimeException(e);
+            }
         }
 
-        public void setResponseContentType(String type) {
-            responseContentType = type;
+        private void spill() throws IOException {
+            file = store.newFile();
+            out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            digest = sha256();
+            long left = length;
+            for (byte[] chunk : chunks) {
+                int n = (int) Math.min(left, chunk.length);
+                out.write(chunk, 0, n);
+                digest.update(chunk, 0, n);
+                left -= n;
+            }
+            releaseChunks();
         }
 
-        public String getResponseContentType() {
-            return responseContentType;
+        long length() {
+            return length;
         }
 
-        public void setResponseUrl(String url) {
-            this.responseUrl = url;
+        boolean isSpilled() {
+            return file != null;
         }
 
-        public String getResponseUrl() {
-            return responseUrl;
+        File file() {
+            return file;
         }
 
-    }
-
-
-    private Thread serverThread = null;
-    private ServerSocket serverSocket = null;
-    private volatile boolean serverStarted = false;
-    private ServerSocketFactory serverSocketFactory = null;
-    private int serverPort;
-    private int readTimeOut = 5000;
-    private int delayResponseTime = 0;
-    private static byte[] NEW_LINE = "\r\n".getBytes();
-    private String requestMethod = null;
-    private String requestUrl = null;
-    private Map<String, List<String>> requestHeaders = new HashMap<String, List<String>>();
-    private ByteArrayOutputStream requestContent = new ByteArrayOutputStream();
-    private Map<String, SimpleMockResponse> mockHttpServerResponses = new HashMap<String, SimpleMockResponse>();
-    private AtomicInteger nrOfRequests = new AtomicInteger(0);
-    private long responseDelay;
-    private Set<Method> annotatedMethods;
-    private String packages; // where the annotations are, for example "net.mrkzea.controller"
-
-
-    private synchronized void waitForServerToStop() {
-        try {
-            wait(5000);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        // closes the spill file and returns the digest of what was written
+        String finishDigest() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return hex(digest.digest());
         }
-    }
 
+        byte[] toByteArray() {
+            byte[] content = new byte[(int) length];
+            int position = 0;
+            for (byte[] chunk : chunks) {
+                int n = Math.min(content.length - position, chunk.length);
+                System.arraycopy(chunk, 0, content, position, n);
+                position += n;
+            }
+            releaseChunks();
+            return content;
+        }
 
-    public void run() {
-        serverThread = Thread.currentThread();
-        executeLoop();
-    }
-
+        void discard() {
+            releaseChunks();
+            if (file != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // deleted anyway
+                }
+                file.delete();
+            }
+        }
 
-    private void executeLoop() {
-        serverStarted();
-        try {
-            while (true) {
-                Socket socket = serverSocket.accept();
-                HttpProcessor processor = new HttpProcessor(socket);
-                processor.run();
+        private void releaseChunks() {
+            for (byte[] chunk : chunks) {
+                store.release(chunk);
             }
-        } catch (IOException e) {
-            if (e instanceof SocketException) {
-                if (!("Socket closed".equalsIgnoreCase(e.getMessage()) || "Socket is closed"
-                        .equalsIgnoreCase(e.getMessage()))) {
-                    e.printStackTrace();
-                    throw new RuntimeException(e);
-                }
-            } else {
-                e.printStackTrace();
+            chunks.clear();
+            chunkPosition = BodyStore.CHUNK_SIZE;
+        }
+
+        static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
                 throw new RuntimeException(e);
             }
-        } finally {
-            serverStopped();
+        }
+
+        static String hex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
         }
     }
 
 
-    private synchronized void serverStarted() {
-        notifyAll();
-    }
 
 
-    private synchronized void serverStopped() {
-        notifyAll();
-    }
+    private class NioEventLoop extends Thread {
 
+        private static final int READ_BUFFER_SIZE = 64 * 1024;
+        private static final long SWEEP_INTERVAL = 1000;
 
-    public synchronized void stopServer() {
-        requestUrl = null;
-        mockHttpServerResponses = null;
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        // shared by all connections of this loop, a connection only keeps its own buffer for unparsed input
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final RequestParser parser = new RequestParser();
+        private final PriorityQueue<DelayedResponse> delayedResponses = new PriorityQueue<DelayedResponse>();
+        private volatile boolean running = true;
 
-        if (!serverStarted) {
-            return;
+        NioEventLoop(int index) throws IOException {
+            super("mock-server-nio-" + index);
+            setDaemon(true);
+            selector = Selector.open();
         }
 
-        try {
-            serverStarted = false;
-            serverThread.interrupt();
-            serverSocket.close();
-            waitForServerToStop();
-        } catch (IOException e) {
-            e.printStackTrace();
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
         }
-    }
-
-
-    private class HttpProcessor {
-
-        private Socket socket;
 
-        public HttpProcessor(Socket socket) throws SocketException {
-            socket.setSoTimeout(readTimeOut);
-            socket.setKeepAlive(false);
-            this.socket = socket;
+        void shutdown() {
+            running = false;
+            selector.wakeup();
         }
 
         public void run() {
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
             try {
-                processRequest(socket);
-                processResponse(socket);
-            } catch (IOException e) {
-                if (e instanceof SocketException) {
-                    if (!("socket closed".equalsIgnoreCase(e.getMessage()))) {
-                        e.printStackTrace();
-                        throw new RuntimeException(e);
+                while (running) {
+                    long now = System.currentTimeMillis();
+                    long wakeUp = delayedResponses.isEmpty() ? nextSweep : Math.min(nextSweep, delayedResponses.peek().due);
+                    selector.select(Math.max(1, wakeUp - now));
+                    registerPendingChannels();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                                connection.resume();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                    now = System.currentTimeMillis();
+                    sendDelayedResponses(now);
+                    if (now >= nextSweep) {
+                        closeIdleConnections(now);
+                        nextSweep = now + SWEEP_INTERVAL;
                     }
-                } else {
-                    e.printStackTrace();
-                    throw new RuntimeException(e);
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).close();
+                }
                 try {
-                    socket.shutdownOutput();
-                    socket.close();
+                    selector.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
         }
 
-        private void processRequest(Socket socket) throws IOException {
-            requestContent.reset();
-            BufferedInputStream is = new BufferedInputStream(socket.getInputStream());
-            String requestMethodHeader = new String(readLine(is));
-            if (requestMethodHeader == null) {
-                return;
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    NioConnection connection = new NioConnection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    metrics.connectionOpened();
+                } catch (IOException e) {
+                    releaseConnection();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
             }
-            processRequestMethod(requestMethodHeader);
-            processRequestHeaders(is);
-            processRequestContent(is);
         }
 
-        private void processRequestMethod(String requestMethodHeader) {
-            String[] parts = requestMethodHeader.split(" ");
-            if (parts.length < 2) {
-                throw new RuntimeException("illegal http request");
+        private void sendDelayedResponses(long now) {
+            while (!delayedResponses.isEmpty() && delayedResponses.peek().due <= now) {
+                DelayedResponse delayed = delayedResponses.poll();
+                try {
+                    if (delayed.response == DelayedResponse.HANG_UP) {
+                        delayed.connection.close();
+                        continue;
+                    }
+                    if (delayed.response == null) {
+                        delayed.connection.sendChunks();
+                    } else {
+                        metrics.record(Phase.DELAY, System.nanoTime() - delayed.delayedAt);
+                        delayed.connection.send(delayed.response, delayed.keepAlive);
+                    }
+                    delayed.connection.resume();
+                } catch (IOException e) {
+                    delayed.connection.close();
+                }
             }
-            requestMethod = parts[0];
-            requestUrl = parts[1];
         }
 
-        private void processRequestHeaders(InputStream is) throws IOException {
-            requestHeaders.clear();
-            System.out.println(requestUrl);
-            byte[] line = null;
-            while ((line = readLine(is)) != null) {
-                String lineStr = new String(line);
-                if ("".equals(lineStr.trim())) {
-                    break;
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection.isIdleSince(now - readTimeOut)) {
+                    connection.close();
                 }
-                addRequestHeader(lineStr);
             }
         }
+    }
 
-        private void processRequestContent(InputStream is) throws NumberFormatException,
-                IOException {
-            if (!("PUT".equals(requestMethod) || "POST".equals(requestMethod))) {
-                return;
-            }
 
-            List<String> transferEncodingValues = requestHeaders.get("Transfer-Encoding");
-            String transferEncoding =
-                    (transferEncodingValues == null || transferEncodingValues.isEmpty()) ? null
-                            : transferEncodingValues.get(0);
-            if ("chunked".equals(transferEncoding)) {
-                processChunkedContent(is);
-            } else {
-                processRegularContent(is);
-            }
+    private static class DelayedResponse implements Comparable<DelayedResponse> {
+
+        static final WireResponse HANG_UP = new WireResponse(null);  // closes the connection, see NO_RESPONSE
+
+        final long due;
+        final NioConnection connection;
+        final WireResponse response;  // null for the next chunks of the connection's stream
+        final boolean keepAlive;
+        final long delayedAt = System.nanoTime();
+
+        DelayedResponse(long due, NioConnection connection, WireResponse response, boolean keepAlive) {
+            this.due = due;
+            this.connection = connection;
+            this.response = response;
+            this.keepAlive = keepAlive;
         }
 
-        private void processRegularContent(InputStream is) throws IOException {
-            List<String> contentLengthValues = requestHeaders.get("Content-Length");
-            String contentLength =
-                    (contentLengthValues == null || contentLengthValues.isEmpty()) ? null
-                            : contentLengthValues.get(0);
-            if (contentLength == null) {
-                return;
-            }
-            int contentLen = Integer.parseInt(contentLength);
-            byte[] bytes = new byte[contentLen];
-            is.read(bytes);
-            requestContent.write(bytes);
+        public int compareTo(DelayedResponse other) {
+            return Long.compare(due, other.due);
         }
+    }
 
 
-        private void processChunkedContent(InputStream is) throws IOException {
-            requestContent.write("".getBytes());
-            byte[] chunk = null;
-            byte[] line = null;
-            boolean lastChunk = false;
-            while (!lastChunk && (line = readLine(is)) != null) {
+    private class NioConnection {
 
-                String lineStr = new String(line);
-                if ("0".equals(lineStr)) {
-                    lastChunk = true;
-                }
+        private final NioEventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer pending;  // unparsed input in write mode, null while there is none
+        private RequestParser.PendingRequest partial;  // body still arriving
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+        private int served;
+        private boolean awaitingResponse;
+        private ChunkedStream stream;
+        private boolean inFlight;
+        private boolean closeAfterWrite;
+        private boolean lingering;  // answered before the request was read, the rest is read and dropped until the close
+        private long lastActivity = System.currentTimeMillis();
+
+        NioConnection(NioEventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
 
-                if (!lastChunk) {
-                    int chunkLen = Integer.parseInt(lineStr, 16);
-                    chunk = getChunk(is, chunkLen);
-                    readLine(is);
-                    requestContent.write(chunk);
+        void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            metrics.bytesIn(read);
+            buffer.flip();
+            if (pending == null && !awaitingResponse) {
+                processInput(buffer);
+                if (buffer.hasRemaining()) {
+                    pending = ByteBuffer.allocate(Math.max(4096, buffer.remaining() * 2));
+                    pending.put(buffer);
                 }
+            } else {
+                append(buffer);
+                resume();
+            }
+        }
+
+        // continues with pipelined input once the previous response is out
+        void resume() throws IOException {
+            if (pending == null || awaitingResponse || !outbound.isEmpty() || !channel.isOpen()) {
+                return;
             }
-            if (lastChunk) {
-                readLine(is);
+            pending.flip();
+            processInput(pending);
+            if (pending.hasRemaining()) {
+                pending.compact();
+            } else {
+                pending = null;
             }
         }
 
+        // reads stop while a response is pending or unsent, see updateInterest, so what piles up here is one read
+        // beyond an incomplete head, and heads are limited by maxHeaderSize
+        private void append(ByteBuffer buffer) {
+            if (pending == null) {
+                pending = ByteBuffer.allocate(Math.max(4096, buffer.remaining() * 2));
+            } else if (pending.remaining() < buffer.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + buffer.remaining()));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(buffer);
+        }
 
-        private byte[] readLine(InputStream is) throws IOException {
-            int n;
-            ByteArrayOutputStream tmpOs = new ByteArrayOutputStream();
-            while ((n = is.read()) != -1) {
-                if (n == '\r') {
-                    n = is.read();
-                    if (n == '\n') {
-                        return tmpOs.toByteArray();
-                    } else {
-                        tmpOs.write('\r');
-                        if (n != -1) {
-                            tmpOs.write(n);
-                        } else {
-                            return tmpOs.toByteArray();
+        private void processInput(ByteBuffer input) throws IOException {
+            while (!awaitingResponse && !closeAfterWrite && outbound.isEmpty() && input.hasRemaining()) {
+                long parseStart = System.nanoTime();
+                SimpleMockRequest request;
+                int consumed;
+                try {
+                    if (partial != null) {
+                        request = partial.feed(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                        consumed = partial.consumed();
+                        if (request != null) {
+                            partial = null;
                         }
+                    } else {
+                        loop.parser.limits(maxHeaderSize, maxBodySize, bodyStore);
+                        request = loop.parser.parse(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                        consumed = loop.parser.consumed();
+                        partial = loop.parser.takePending();
                     }
-                } else if (n == '\n') {
-                    return tmpOs.toByteArray();
-                } else {
-                    tmpOs.write(n);
+                } catch (RequestTooLargeException e) {
+                    metrics.requestTooLarge();
+                    input.position(input.limit());
+                    lingering = true;
+                    send(e.response(), false);
+                    return;
+                }
+                input.position(input.position() + consumed);
+                if (request == null) {
+                    return;
                 }
+                metrics.record(Phase.PARSE, System.nanoTime() - parseStart);
+                handle(request);
+            }
+            if (closeAfterWrite) {
+                input.position(input.limit());
             }
-            return tmpOs.toByteArray();
         }
 
-        private byte[] getChunk(InputStream is, int len) throws IOException {
-            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
-            int read = 0;
-            int totalRead = 0;
-            byte[] bytes = new byte[512];
-            while (totalRead < len) {
-                read = is.read(bytes, 0, Math.min(bytes.length, len - totalRead));
-                chunk.write(bytes, 0, read);
-                totalRead += read;
+        private void handle(SimpleMockRequest request) throws IOException {
+            served++;
+            boolean keepAlive = served < Math.max(1, maxRequestsPerConnection) && request.isKeepAliveRequested();
+            WireResponse response;
+            if (admitRequest()) {
+                inFlight = true;
+                response = findResponse(request);
+            } else {
+                response = overloaded;
+                keepAlive = false;
+            }
+            recordRequest(request, response);
+            long delay = delayFor(response);
+            if (delay > 0) {
+                awaitingResponse = true;
+                updateInterest();
+                loop.delayedResponses.add(new DelayedResponse(System.currentTimeMillis() + delay, this, response, keepAlive));
+            } else {
+                metrics.record(Phase.DELAY, 0);
+                send(response, keepAlive);
             }
-            return chunk.toByteArray();
         }
 
-        private void addRequestHeader(String line) {
-            String[] parts = line.split(": ");
-            List<String> values = requestHeaders.get(parts[0]);
-            if (values == null) {
-                values = new ArrayList<String>();
-                requestHeaders.put(parts[0], values);
+        void send(WireResponse response, boolean keepAlive) throws IOException {
+            ResponseFault fault = response.fault();
+            if (fault != null) {
+                injectFault(response, fault);
+                return;
+            }
+            if (response.chunkSize > 0) {
+                awaitingResponse = true;
+                outbound.add(response.head(keepAlive));
+                stream = new ChunkedStream(response, keepAlive);
+                sendChunks();
+                return;
+            }
+            long writeStart = System.nanoTime();
+            awaitingResponse = false;
+            Collections.addAll(outbound, response.toBuffers(keepAlive));
+            if (!keepAlive) {
+                closeAfterWrite = true;
             }
-            values.add(parts[1]);
+            metrics.recordResponse(response.route, response.status);
+            nrOfRequests.getAndAdd(1);
+            flush();
+            metrics.record(Phase.WRITE, System.nanoTime() - writeStart);
+            finishExchange();
         }
 
-        private void processResponse(Socket socket) throws IOException {
-            if (!delayResponse())
-                return;
+        // the connection ends with every fault, NO_RESPONSE and TRICKLE on the loop's timer
+        private void injectFault(WireResponse response, ResponseFault fault) throws IOException {
+            metrics.faultInjected(fault.type);
+            switch (fault.type) {
+                case RESET:
+                    closeAfterWrite = true;
+                    channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                    close();
+                    return;
+                case NO_RESPONSE:
+                    awaitingResponse = true;
+                    updateInterest();
+                    loop.delayedResponses.add(new DelayedResponse(System.currentTimeMillis() + fault.millis, this, DelayedResponse.HANG_UP, false));
+                    return;
+                case TRICKLE:
+                    awaitingResponse = true;
+                    stream = new ChunkedStream(response, fault);
+                    sendChunks();
+                    return;
+                default:
+                    awaitingResponse = false;
+                    Collections.addAll(outbound, response.faultBuffers(fault));
+                    closeAfterWrite = true;
+                    flush();
+                    finishExchange();
+            }
+        }
 
-            OutputStream sos = socket.getOutputStream();
-            BufferedOutputStream os = new BufferedOutputStream(sos);
-            SimpleMockResponse mockHttpServerResponse = mockHttpServerResponses.get(requestUrl);
-            if (mockHttpServerResponse != null) {
-                int mockResponseCode = mockHttpServerResponse.getResponseCode();
-                os.write(("HTTP/1.1 " + mockResponseCode).getBytes());
-            } else {
-                os.write(("HTTP/1.1 " + "500").getBytes());
+        private void finishExchange() {
+            if (inFlight) {
+                inFlight = false;
+                inFlightRequests.decrementAndGet();
             }
-            os.write(NEW_LINE);
-            processResponseHeaders(os);
-            processResponseContent(os);
-            os.flush();
-            nrOfRequests.getAndAdd(1);
         }
 
-        private boolean delayResponse() {
-            if (delayResponseTime > 0) {
-                try {
-                    Thread.sleep(delayResponseTime);
-                    return true;
-                } catch (InterruptedException e) {
-                    return false;
-                }
+        // queues the chunks that are due and schedules the rest on the loop
+        void sendChunks() throws IOException {
+            ChunkedStream current = stream;
+            long writeStart = System.nanoTime();
+            long pause = 0;
+            do {
+                Collections.addAll(outbound, current.next());
+            } while (!current.isDone() && (pause = current.pause()) <= 0);
+            if (current.isDone()) {
+                stream = null;
+                awaitingResponse = false;
+                closeAfterWrite = !current.keepAlive;
+                metrics.recordResponse(current.response.route, current.response.status);
+                nrOfRequests.getAndAdd(1);
             }
-            return true;
+            flush();
+            current.writeNanos += System.nanoTime() - writeStart;
+            if (!current.isDone()) {
+                loop.delayedResponses.add(new DelayedResponse(System.currentTimeMillis() + pause, this, null, current.keepAlive));
+                return;
+            }
+            metrics.record(Phase.WRITE, current.writeNanos);
+            finishExchange();
         }
 
-        private void processResponseContent(OutputStream os) throws IOException {
-            if (mockHttpServerResponses.get(requestUrl) != null) {
-                if (mockHttpServerResponses.get(requestUrl).getResponseContent() == null) {
+        void flush() throws IOException {
+            if (!outbound.isEmpty()) {
+                long written = channel.write(outbound.toArray(new ByteBuffer[outbound.size()]));
+                metrics.bytesOut(written);
+                if (written > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                }
+            }
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (outbound.isEmpty()) {
+                lastActivity = System.currentTimeMillis();
+                if (closeAfterWrite && lingering) {
+                    // like closeLingering, without holding on to what still arrives
+                    channel.shutdownOutput();
+                    loop.delayedResponses.add(new DelayedResponse(System.currentTimeMillis() + LINGER_MILLIS, this, DelayedResponse.HANG_UP, false));
+                } else if (closeAfterWrite) {
+                    close();
                     return;
                 }
-                os.write(mockHttpServerResponses.get(requestUrl).getResponseContent());
             }
+            updateInterest();
         }
 
-        private void processResponseHeaders(OutputStream os) throws IOException {
-            addServerResponseHeaders();
-            System.out.println(requestUrl);
-            if (mockHttpServerResponses.get(requestUrl) != null) {
-
-                mockHttpServerResponses.get(requestUrl).getResponseHeaders().keySet()
-                        .stream()
-                        .forEach(header -> writeToOutput(os, header));
+        // a client that sends without reading fills its own socket buffer instead of this connection's buffers:
+        // reads stop while a response is pending or unsent, except after a lingering answer whose input is dropped
+        private void updateInterest() {
+            boolean reading = lingering || (!awaitingResponse && outbound.isEmpty());
+            key.interestOps((reading ? SelectionKey.OP_READ : 0) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
 
-                os.write(NEW_LINE);
-            }
+        // also true for a client that stopped reading the responses
+        boolean isIdleSince(long time) {
+            return !awaitingResponse && lastActivity < time;
         }
 
-        private void addServerResponseHeaders() throws IOException {
-            SimpleMockResponse response = mockHttpServerResponses.get(requestUrl);
-            if (response != null) {
-                Map<String, String> mockResponseHeaders = response.getResponseHeaders();
-                mockResponseHeaders.put("Content-Type", response.getResponseContentType());
-                mockResponseHeaders.put("Content-Length", response.getResponseContent().length + "");
-                mockResponseHeaders.put("Server", "Mock HTTP Server v1.0");
-                mockResponseHeaders.put("Connection", "closed");
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            metrics.connectionClosed();
+            releaseConnection();
+            finishExchange();
+            if (partial != null) {
+                partial.discard();
+                partial = null;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
     }
 
-    private void writeToOutput(OutputStream os, String header) {
-        try {
-            os.write((header + ": " + mockHttpServerResponses.get(requestUrl)
-                    .getResponseHeaders()
-                    .get(header))
-                    .getBytes());
-            os.write(NEW_LINE);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write to IO", e);
-        }
-    }
 
     public String readStream(InputStream in) {
         StringBuffer expectedBuff = new StringBuffer();
@@ -515,49 +5462,189 @@ public class SimpleMockServer extends Thread {
         readTimeOut = milliseconds;
     }
 
+    // over the limit new connections are handled according to setConnectionLimitPolicy
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setConnectionLimitPolicy(ConnectionLimitPolicy policy) {
+        this.connectionLimitPolicy = policy;
+    }
+
+    // exchanges being served at once, delayed and streaming ones included; further requests get a 503
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    // requests over these sizes get a 431 or 413 and the connection is closed
+    public void setMaxHeaderSize(int bytes) {
+        this.maxHeaderSize = bytes;
+    }
+
+    public void setMaxBodySize(int bytes) {
+        this.maxBodySize = bytes;
+    }
+
+    // larger request bodies are written to a temp file as they arrive, see SimpleMockRequest.openContent
+    public void setRequestBodyMemoryLimit(int bytes) {
+        bodyStore.setMemoryLimit(bytes);
+    }
+
+    // where spilled request bodies go, a new temp directory by default; emptied by clearRequests and stopServer
+    public void setRequestBodySpillDirectory(File directory) {
+        bodyStore.setDirectory(directory);
+    }
+
+    // Retry-After seconds sent with 503 answers
+    public void setRetryAfter(int seconds) {
+        overloaded = errorResponse(503, ServerMetrics.REJECTED, "overloaded", seconds);
+    }
+
+    public void setMaxRequestsPerConnection(int maxRequests) {
+        maxRequestsPerConnection = maxRequests;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
     public void setDelayResponse(int milliseconds) {
-        delayResponseTime = milliseconds;
+        defaultDelay = ResponseDelay.fixed(milliseconds);
+    }
+
+    // default for responses without their own delay, see ResponseDelay for the spec format
+    public void setDelayResponse(String spec) {
+        defaultDelay = ResponseDelay.parse(spec);
+    }
+
+    public RequestJournal getJournal() {
+        return journal;
+    }
+
+    // replaces the journal and its recorded requests, memoryBudget caps the retained request bodies
+    public void configureJournal(int capacity, long memoryBudget, OverflowPolicy policy, File spillFile) {
+        RequestJournal previous = journal;
+        journal = new RequestJournal(capacity, memoryBudget, policy, spillFile);
+        previous.close();
+    }
+
+    // replaces the current access log, see AccessLog
+    public synchronized void enableAccessLog(File file, int capacity, double sampleRate, long maxFileBytes, int maxFiles) {
+        AccessLog log = new AccessLog(file, capacity, sampleRate, maxFileBytes, maxFiles);
+        log.start();
+        disableAccessLog();
+        accessLog = log;
+    }
+
+    public synchronized void disableAccessLog() {
+        AccessLog log = accessLog;
+        accessLog = null;
+        if (log != null) {
+            log.shutdown();
+        }
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public SimpleMockRequest getLastRequest() {
+        return lastRequest.get();
+    }
+
+    public List<SimpleMockRequest> getRequests() {
+        return journal.getEntries().stream().map(JournalEntry::getRequest).collect(Collectors.toList());
+    }
+
+    public void clearRequests() {
+        journal.clear();
+        lastRequest.set(null);
+        bodyStore.deleteFiles();
     }
 
     public String getRequestContentAsString() {
-        return requestContent.toString();
+        SimpleMockRequest request = lastRequest.get();
+        return request == null ? "" : request.getContentAsString();
     }
 
     public byte[] getRequestContent() {
-        return requestContent.toByteArray();
+        SimpleMockRequest request = lastRequest.get();
+        return request == null ? new byte[0] : request.getContent();
     }
 
     public Map<String, List<String>> getRequestHeaders() {
-        return requestHeaders;
+        SimpleMockRequest request = lastRequest.get();
+        return request == null ? Collections.<String, List<String>>emptyMap() : request.getHeaders();
     }
 
     public String getRequestMethod() {
-        return requestMethod;
+        SimpleMockRequest request = lastRequest.get();
+        return request == null ? null : request.getMethod();
     }
 
     public String getRequestUrl() {
-        return requestUrl;
+        SimpleMockRequest request = lastRequest.get();
+        return request == null ? null : request.getUrl();
     }
 
 
-    public void setMockHttpServerResponses(SimpleMockResponse... responses) {
-        mockHttpServerResponses.clear();
+    // the route table is replaced under the server's lock, so a concurrent update is not lost
+    public synchronized void setMockHttpServerResponses(SimpleMockResponse... responses) {
         for (int i = 0; i < responses.length; i++) {
-            mockHttpServerResponses.put(responses[i].getResponseUrl(), responses[i]);
+            responses[i].precompile();
         }
+        routes = new RouteTable(Arrays.asList(responses));
+        responseCache.clear();
+    }
+
+    public synchronized void updateMockHttpServerResponse(SimpleMockResponse response) {
+        response.precompile();
+        routes = routes.with(response);
+    }
+
+    public synchronized void clearResponses() {
+        routes = RouteTable.EMPTY;
+        responseCache.clear();
+    }
+
+
+    // null for an unknown scenario, or once the server is stopped
+    public String getScenarioState(String scenario) {
+        RouteTable table = routes;
+        AtomicReference<String> state = table == null ? null : table.scenarios.get(scenario);
+        return state == null ? null : state.get();
     }
 
-    public void updateMockHttpServerResponse(SimpleMockResponse response) {
-        mockHttpServerResponses.put(response.getResponseUrl(), response);
+    public void setScenarioState(String scenario, String state) {
+        RouteTable table = routes;
+        if (table == null) {
+            throw new IllegalStateException("The server is stopped");
+        }
+        AtomicReference<String> current = table.scenarios.get(scenario);
+        if (current == null) {
+            throw new IllegalArgumentException("No response belongs to scenario " + scenario);
+        }
+        current.set(state);
     }
 
-    public void clearResponses() {
-        mockHttpServerResponses.clear();
+    // all scenarios back to SCENARIO_STARTED and all sequences back to their first response
+    public void resetScenarios() {
+        RouteTable table = routes;
+        if (table != null) {
+            table.reset();
+        }
     }
 
 
+    // keyed by url, or by "METHOD url" for method specific responses
     public Map<String, SimpleMockResponse> getMockHttpServerResponses() {
-        return mockHttpServerResponses;
+        RouteTable table = routes;
+        if (table == null) {
+            return null;
+        }
+        Map<String, SimpleMockResponse> responses = new LinkedHashMap<String, SimpleMockResponse>();
+        table.responses().forEach(r -> responses.put(RouteTable.routeKey(r), r));
+        return Collections.unmodifiableMap(responses);
     }
 
     public void setServerPort(int serverPort) {
@@ -568,10 +5655,31 @@ public class SimpleMockServer extends Thread {
         return serverPort;
     }
 
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
     public int getNrOfRequests() {
         return nrOfRequests.get();
     }
 
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // GET <path>/metrics returns the metrics as json, POST <path>/metrics/reset clears them, null disables both
+    public void setAdminPath(String path) {
+        adminPath = path;
+    }
+
+    public String getAdminPath() {
+        return adminPath;
+    }
+
 
     public Set<Method> getMethodsWithinPackage(String pack) {
         Class[] classes;
@@ -640,6 +5748,8 @@ public class SimpleMockServer extends Thread {
                         classes.add(Class.forName(packageName + '.' + file.getName().substring(0, file.getName().length() - 6)));
                     } catch (ClassNotFoundException e) {
                         throw new RuntimeException(e);
+                    } catch (LinkageError e) {
+                        // needs an optional dependency that is missing, like MockServerRule without JUnit
                     }
                 });
 
@@ -8,6 +8,10 @@ import org.junit.Test;
 import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -121,6 +125,1020 @@ public class SimpleMockServerTests {
     }
 
 
+    private void assertConcurrentClients(SimpleMockServer server, int port) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 100; i++) {
+            final String file = "response" + (i % 10 + 1) + ".json";
+            futures.add(executor.submit(() -> {
+                String expected = readStream(getClass().getClassLoader().getResourceAsStream("mocks/" + file));
+                return expected.equals(httpGet("http://localhost:" + port + "/server/" + file)) ? null : file;
+            }));
+        }
+        for (Future<String> future : futures) {
+            Assert.assertNull(future.get());
+        }
+        executor.shutdown();
+        Assert.assertEquals(100, server.getNrOfRequests());
+        Assert.assertEquals(100, server.getRequests().size());
+        Assert.assertEquals("GET", server.getLastRequest().getMethod());
+    }
+
+
+    private void assertPipelinedRequests(SimpleMockServer server, int port) throws Exception {
+        server.setMaxRequestsPerConnection(3);
+        try (Socket socket = new Socket("localhost", port)) {
+            String get = "GET /server/response2.json HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            socket.getOutputStream().write((get + get + get + get).getBytes());
+            socket.getOutputStream().flush();
+            String responses = readStream(socket.getInputStream());
+            Assert.assertEquals(3, responses.split("HTTP/1.1 200").length - 1);
+            Assert.assertEquals(2, responses.split("Connection: keep-alive").length - 1);
+            Assert.assertTrue(responses.contains("Connection: close"));
+        }
+    }
+
+
+    @Test
+    public void testThreadPoolServerWithMultipleThreads() throws Exception {
+        SimpleMockServer pooled = new SimpleMockServer(10001, 0, "net.mrkzea.mockserver",
+                SimpleMockServer.ExecutionMode.THREAD_POOL, 8);
+        try {
+            assertConcurrentClients(pooled, 10001);
+
+            SimpleMockServer.ServerMetrics metrics = pooled.getMetrics();
+            Assert.assertEquals(100, metrics.getRequests());
+            Assert.assertEquals(10, metrics.getRequests("/server/response1.json"));
+            Assert.assertEquals(Long.valueOf(100), metrics.getStatusCounts().get(200));
+            Assert.assertEquals(100, metrics.getLatency(SimpleMockServer.Phase.PARSE).getCount());
+            // the write phase ends with the flush, after the client could read the response
+            for (long deadline = System.currentTimeMillis() + 1000; metrics.getLatency(SimpleMockServer.Phase.WRITE).getCount() < 100
+                    && System.currentTimeMillis() < deadline; ) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(100, metrics.getLatency(SimpleMockServer.Phase.WRITE).getCount());
+            Assert.assertTrue(metrics.getBytesIn() > 0 && metrics.getBytesOut() > metrics.getBytesIn());
+            Assert.assertTrue(exchange(10001, "GET", "/__admin/metrics").contains("\"/server/response1.json\":10"));
+            Assert.assertFalse(exchange(10001, "GET", "/__adminX/metrics").contains("\"requests\""));
+            Assert.assertFalse(exchange(10001, "GET", "/__admin/metrics").contains("(admin)"));
+            Assert.assertEquals(101, metrics.getRequests());
+        } finally {
+            pooled.stopServer();
+        }
+    }
+
+
+    @Test
+    public void testMultipleAcceptors() throws Exception {
+        int port = 10006;
+        for (SimpleMockServer.ExecutionMode mode : new SimpleMockServer.ExecutionMode[]{
+                SimpleMockServer.ExecutionMode.THREAD_POOL, SimpleMockServer.ExecutionMode.NIO}) {
+            SimpleMockServer server = new SimpleMockServer(port, 0, "net.mrkzea.mockserver", mode, 16, 4);
+            try {
+                assertConcurrentClients(server, port);
+                for (int i = 0; i < 40; i++) {
+                    Assert.assertTrue(exchange(port, "GET", "/server/response2.json").startsWith("HTTP/1.1 200"));
+                }
+                long[] accepted = server.getMetrics().getAcceptedConnections();
+                Assert.assertEquals(4, accepted.length);
+                Assert.assertEquals(server.getMetrics().getTotalConnections(), Arrays.stream(accepted).sum());
+                Assert.assertTrue(Arrays.stream(accepted).filter(n -> n > 0).count() > 1);
+            } finally {
+                server.stopServer();
+            }
+            port++;
+        }
+    }
+
+
+    @Test
+    public void testInvalidPoolSize() throws Exception {
+        for (SimpleMockServer.ExecutionMode mode : new SimpleMockServer.ExecutionMode[]{
+                SimpleMockServer.ExecutionMode.THREAD_POOL, SimpleMockServer.ExecutionMode.NIO}) {
+            try {
+                new SimpleMockServer(10015, 0, "net.mrkzea.mockserver", mode, 0);
+                Assert.fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            new java.net.ServerSocket(10015).close();
+        }
+    }
+
+
+    @Test
+    public void testFullPool() throws Exception {
+        SimpleMockServer pooled = new SimpleMockServer(10016, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.THREAD_POOL, 1);
+        List<Socket> idle = new ArrayList<Socket>();
+        try {
+            // one connection holds the only worker, 64 more fill its queue
+            for (int i = 0; i < 65; i++) {
+                idle.add(new Socket("localhost", 10016));
+            }
+            Thread.sleep(200);
+            Assert.assertTrue(exchange(10016, "GET", "/server/response2.json").startsWith("HTTP/1.1 503"));
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            Thread.sleep(200);
+            Assert.assertTrue(exchange(10016, "GET", "/server/response2.json").startsWith("HTTP/1.1 200"));
+            Assert.assertEquals(1, pooled.getMetrics().getRejectedConnections());
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            pooled.stopServer();
+        }
+    }
+
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        int port = 10008;
+        for (SimpleMockServer.ExecutionMode mode : new SimpleMockServer.ExecutionMode[]{
+                SimpleMockServer.ExecutionMode.THREAD_POOL, SimpleMockServer.ExecutionMode.NIO}) {
+            SimpleMockServer server = new SimpleMockServer(port, 0, "net.mrkzea.mockserver", mode, 4, 1, 16);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            int serverPort = port;
+            try {
+                server.setMaxHeaderSize(1024);
+                server.setMaxBodySize(10);
+                char[] padding = new char[2048];
+                Arrays.fill(padding, 'x');
+                Assert.assertTrue(exchange(port, "GET", "/server/response2.json HTTP/1.1\r\nX-Padding: " + new String(padding) + "\r\nX-End: 1")
+                        .startsWith("HTTP/1.1 431"));
+                Assert.assertTrue(exchange(port, "POST", "/server/response2.json HTTP/1.1\r\nContent-Length: 100\r\nX-End: 1")
+                        .startsWith("HTTP/1.1 413"));
+                // the unread body does not reset the connection before the answer is read
+                try (Socket socket = new Socket("localhost", port)) {
+                    char[] body = new char[64 * 1024];
+                    Arrays.fill(body, 'y');
+                    socket.getOutputStream().write(("POST /server/response2.json HTTP/1.1\r\nContent-Length: " + body.length
+                            + "\r\n\r\n" + new String(body)).getBytes("ISO-8859-1"));
+                    Assert.assertTrue(new String(readAll(socket.getInputStream()), "ISO-8859-1").startsWith("HTTP/1.1 413"));
+                }
+
+                server.setMaxInFlightRequests(1);
+                server.setRetryAfter(7);
+                Future<String> slow = executor.submit(() -> exchange(serverPort, "GET", "/delay/slow"));
+                Thread.sleep(100);
+                String shed = exchange(port, "GET", "/server/response2.json");
+                Assert.assertTrue(shed.startsWith("HTTP/1.1 503"));
+                Assert.assertTrue(shed.contains("Retry-After: 7"));
+                Assert.assertTrue(slow.get().startsWith("HTTP/1.1 200"));
+                server.setMaxInFlightRequests(Integer.MAX_VALUE);
+
+                server.setMaxConnections(1);
+                try (Socket idle = new Socket("localhost", port)) {
+                    Thread.sleep(100);
+                    Assert.assertTrue(exchange(port, "GET", "/server/response2.json").startsWith("HTTP/1.1 503"));
+                    server.setConnectionLimitPolicy(SimpleMockServer.ConnectionLimitPolicy.STOP_ACCEPTING);
+                    Future<String> waiting = executor.submit(() -> exchange(serverPort, "GET", "/server/response2.json"));
+                    Thread.sleep(300);
+                    Assert.assertFalse(waiting.isDone());
+                    idle.close();
+                    Assert.assertTrue(waiting.get(5, TimeUnit.SECONDS).startsWith("HTTP/1.1 200"));
+                }
+
+                SimpleMockServer.ServerMetrics metrics = server.getMetrics();
+                Assert.assertEquals(3, metrics.getOversizedRequests());
+                Assert.assertEquals(1, metrics.getShedRequests());
+                Assert.assertEquals(1, metrics.getRejectedConnections());
+            } finally {
+                executor.shutdownNow();
+                server.stopServer();
+            }
+            port++;
+        }
+    }
+
+
+    @Test
+    public void testPersistentConnectionWithPipelining() throws Exception {
+        SimpleMockServer pooled = new SimpleMockServer(10002, 0, "net.mrkzea.mockserver",
+                SimpleMockServer.ExecutionMode.THREAD_POOL, 2);
+        try {
+            assertPipelinedRequests(pooled, 10002);
+            Assert.assertEquals(3, pooled.getNrOfRequests());
+        } finally {
+            pooled.stopServer();
+        }
+    }
+
+
+    @Test
+    public void testNioServer() throws Exception {
+        SimpleMockServer nio = new SimpleMockServer(10003, 0, "net.mrkzea.mockserver",
+                SimpleMockServer.ExecutionMode.NIO, 2);
+        try {
+            assertConcurrentClients(nio, 10003);
+            assertPipelinedRequests(nio, 10003);
+            Assert.assertEquals(103, nio.getNrOfRequests());
+
+            try (Socket socket = new Socket("localhost", 10003)) {
+                socket.getOutputStream().write(("POST /server/response2.json HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+                        + "Connection: close\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n").getBytes());
+                Assert.assertTrue(readStream(socket.getInputStream()).startsWith("HTTP/1.1 200"));
+            }
+            Assert.assertEquals("POST", nio.getLastRequest().getMethod());
+            Assert.assertEquals("hello world", nio.getLastRequest().getContentAsString());
+
+            // a client that pipelines without reading gets every answer once it reads
+            nio.setMaxRequestsPerConnection(2000);
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            try (Socket socket = new Socket("localhost", 10003)) {
+                StringBuilder requests = new StringBuilder();
+                for (int i = 0; i < 2000; i++) {
+                    requests.append("GET /server/response2.json HTTP/1.1\r\n\r\n");
+                }
+                Future<?> written = writer.submit(() -> {
+                    socket.getOutputStream().write(requests.toString().getBytes("ISO-8859-1"));
+                    return null;
+                });
+                Thread.sleep(200);
+                String responses = new String(readAll(socket.getInputStream()), "ISO-8859-1");
+                written.get(5, TimeUnit.SECONDS);
+                Assert.assertEquals(2000, responses.split("HTTP/1.1 200", -1).length - 1);
+            } finally {
+                writer.shutdownNow();
+            }
+        } finally {
+            nio.stopServer();
+        }
+    }
+
+
+    @Test
+    public void testRequestParsing() throws Exception {
+        try (Socket socket = new Socket("localhost", 10000)) {
+            socket.getOutputStream().write(("POST /server/response2.json HTTP/1.1\r\nHost: localhost:10000\r\n"
+                    + "X-Test:  first \r\nx-test: second\r\nContent-Length: 11\r\n\r\nhello world").getBytes());
+            Assert.assertTrue(readStream(socket.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+        }
+        SimpleMockServer.SimpleMockRequest request = mockServer.getLastRequest();
+        Assert.assertEquals("POST", request.getMethod());
+        Assert.assertEquals("/server/response2.json", request.getUrl());
+        Assert.assertEquals("HTTP/1.1", request.getProtocol());
+        Assert.assertEquals("localhost:10000", request.getHeader("host"));
+        Assert.assertEquals(2, request.getHeaders().get("X-TEST").size());
+        Assert.assertEquals("first", request.getHeaders().get("X-TEST").get(0));
+        Assert.assertEquals("hello world", mockServer.getRequestContentAsString());
+    }
+
+
+    @Test
+    public void testStreamedRequestBodies() throws Exception {
+        byte[] body = new byte[300 * 1024];
+        new java.util.Random(7).nextBytes(body);
+        String digest = sha256(body);
+        SimpleMockServer nio = new SimpleMockServer(10010, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.NIO, 2);
+        try {
+            int port = 10000;
+            for (SimpleMockServer server : new SimpleMockServer[]{mockServer, nio}) {
+                server.setRequestBodyMemoryLimit(64 * 1024);
+
+                post(port, "/server/response2.json", "Content-Length: " + body.length, body, 10000);
+                SimpleMockServer.SimpleMockRequest request = server.getLastRequest();
+                Assert.assertTrue(request.isContentSpilled());
+                Assert.assertEquals(body.length, request.getContentLength());
+                Assert.assertEquals(digest, request.getContentDigest());
+                try (InputStream in = request.openContent()) {
+                    Assert.assertTrue(Arrays.equals(body, readAll(in)));
+                }
+
+                ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+                for (int i = 0; i < body.length; i += 50000) {
+                    int n = Math.min(50000, body.length - i);
+                    chunked.write((Integer.toHexString(n) + "\r\n").getBytes());
+                    chunked.write(body, i, n);
+                    chunked.write("\r\n".getBytes());
+                }
+                chunked.write("0\r\n\r\n".getBytes());
+                post(port, "/server/response2.json", "Transfer-Encoding: chunked", chunked.toByteArray(), 7);
+                request = server.getLastRequest();
+                Assert.assertTrue(request.isContentSpilled());
+                Assert.assertEquals(digest, request.getContentDigest());
+                Assert.assertTrue(Arrays.equals(body, request.getContent()));
+
+                post(port, "/server/response2.json", "Content-Length: 11", "hello world".getBytes(), 3);
+                request = server.getLastRequest();
+                Assert.assertFalse(request.isContentSpilled());
+                Assert.assertEquals("hello world", request.getContentAsString());
+                Assert.assertEquals(sha256("hello world".getBytes()), request.getContentDigest());
+                port = 10010;
+            }
+
+            // bodies of overwritten and dropped journal entries do not stay on disk
+            File spills = java.nio.file.Files.createTempDirectory("spills").toFile();
+            mockServer.setRequestBodySpillDirectory(spills);
+            mockServer.configureJournal(1, 1024 * 1024, SimpleMockServer.OverflowPolicy.DROP_OLDEST, null);
+            for (int i = 0; i < 3; i++) {
+                post(10000, "/server/response2.json", "Content-Length: " + body.length, body, 100000);
+            }
+            Assert.assertEquals(1, spills.listFiles().length);
+            mockServer.configureJournal(1, 1024 * 1024, SimpleMockServer.OverflowPolicy.DROP_NEWEST, null);
+            for (int i = 0; i < 3; i++) {
+                post(10000, "/server/response2.json", "Content-Length: " + body.length, body, 100000);
+            }
+            Assert.assertEquals(2, spills.listFiles().length);
+        } finally {
+            nio.stopServer();
+        }
+    }
+
+
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(
+                    url = "/match/orders", method = "POST", body = "{\"id\":1}",
+                    response = "mocks/response1.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/match/orders", method = "POST", bodyJson = {"$.customer.tier=gold", "$.items[1].sku=\"B-2\""},
+                    response = "mocks/response2.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/match/orders", method = "POST", bodyPattern = "(^|&)express=true(&|$)",
+                    response = "mocks/response3.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/match/orders", method = "POST", headers = {"X-Tenant: acme", "X-Client: ~mobile-.*"},
+                    response = "mocks/response4.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/match/orders", method = "POST",
+                    response = "mocks/response5.json")
+    })
+    public void testRequestMatchers() throws Exception {
+        Assert.assertTrue(postBody("{\"id\":1}", "").endsWith(expected("mocks/response1.json")));
+        Assert.assertTrue(postBody("{\"customer\": {\"tier\": \"gold\"}, \"items\": [{}, {\"sku\": \"B-2\"}]}", "")
+                .endsWith(expected("mocks/response2.json")));
+        Assert.assertTrue(postBody("{\"customer\": {\"tier\": \"silver\"}}", "").endsWith(expected("mocks/response5.json")));
+        Assert.assertTrue(postBody("id=7&express=true", "").endsWith(expected("mocks/response3.json")));
+        Assert.assertTrue(postBody("{}", "\r\nX-Tenant: acme\r\nX-Client: mobile-ios").endsWith(expected("mocks/response4.json")));
+        Assert.assertTrue(postBody("{}", "\r\nX-Tenant: acme\r\nX-Client: desktop").endsWith(expected("mocks/response5.json")));
+        // a spilled body is not decoded for the pattern
+        mockServer.setRequestBodyMemoryLimit(8);
+        Assert.assertTrue(postBody("id=7&express=true", "").endsWith(expected("mocks/response5.json")));
+        mockServer.setRequestBodyMemoryLimit(1024 * 1024);
+
+        // patterns see the body decoded as UTF-8
+        SimpleMockServer.SimpleMockResponse accented = new SimpleMockServer.SimpleMockResponse();
+        accented.setResponseUrl("/match/accented");
+        accented.setResponseMethod("POST");
+        accented.setRequestBodyPattern("^caf\u00e9$");
+        accented.setResponseContent("accented");
+        mockServer.updateMockHttpServerResponse(accented);
+        byte[] cafe = "caf\u00e9".getBytes("UTF-8");
+        Assert.assertTrue(post(10000, "/match/accented", "Content-Length: " + cafe.length, cafe, cafe.length).endsWith("accented"));
+
+        // exact body variants are found through the digest index
+        List<SimpleMockServer.SimpleMockResponse> variants = new ArrayList<SimpleMockServer.SimpleMockResponse>();
+        for (int i = 0; i < 2000; i++) {
+            SimpleMockServer.SimpleMockResponse variant = new SimpleMockServer.SimpleMockResponse();
+            variant.setResponseUrl("/match/variants");
+            variant.setResponseMethod("POST");
+            variant.setRequestBody("{\"n\":" + i + "}");
+            variant.setResponseContent("variant " + i);
+            variants.add(variant);
+        }
+        mockServer.setMockHttpServerResponses(variants.toArray(new SimpleMockServer.SimpleMockResponse[0]));
+        Assert.assertTrue(post(10000, "/match/variants", "Content-Length: 8", "{\"n\":42}".getBytes(), 8).endsWith("variant 42"));
+        Assert.assertTrue(exchange(10000, "POST", "/match/variants").startsWith("HTTP/1.1 500"));
+    }
+
+
+    @Test
+    public void testAccessLog() throws Exception {
+        File file = File.createTempFile("access", ".log");
+        try {
+            mockServer.enableAccessLog(file, 1024, 1, 0, 0);
+            for (int i = 0; i < 5; i++) {
+                httpGet(HOST + "/server/response" + (i + 1) + ".json");
+            }
+            SimpleMockServer.AccessLog log = mockServer.getAccessLog();
+            mockServer.disableAccessLog();
+            Assert.assertEquals(5, log.getWritten());
+            Assert.assertEquals(0, log.getDropped());
+            List<String> lines = java.nio.file.Files.readAllLines(file.toPath());
+            Assert.assertEquals(5, lines.size());
+            String[] fields = lines.get(4).split("\t");
+            Assert.assertEquals("GET", fields[1]);
+            Assert.assertEquals("/server/response5.json", fields[2]);
+            Assert.assertEquals("200", fields[3]);
+
+            // rotated after every line, the oldest file beyond the second is deleted
+            mockServer.enableAccessLog(file, 1024, 1, 1, 2);
+            for (int i = 0; i < 3; i++) {
+                httpGet(HOST + "/server/response" + (i + 1) + ".json");
+            }
+            mockServer.disableAccessLog();
+            Assert.assertTrue(java.nio.file.Files.readAllLines(new File(file.getPath() + ".1").toPath()).get(0).contains("/server/response3.json"));
+            Assert.assertTrue(java.nio.file.Files.readAllLines(new File(file.getPath() + ".2").toPath()).get(0).contains("/server/response2.json"));
+            Assert.assertFalse(new File(file.getPath() + ".3").exists());
+
+            mockServer.enableAccessLog(file, 1024, 0, 0, 0);
+            httpGet(HOST + "/server/response1.json");
+            log = mockServer.getAccessLog();
+            mockServer.disableAccessLog();
+            Assert.assertEquals(0, log.getWritten());
+        } finally {
+            for (String suffix : new String[]{"", ".1", ".2"}) {
+                new File(file.getPath() + suffix).delete();
+            }
+        }
+    }
+
+
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(
+                    url = "/scenario/flaky", sequence = 0, statusCode = 503,
+                    response = "mocks/response1.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/scenario/flaky", sequence = 1,
+                    response = "mocks/response2.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/scenario/pages", sequence = 0, cycle = true,
+                    response = "mocks/response1.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/scenario/pages", sequence = 1, cycle = true,
+                    response = "mocks/response2.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/scenario/cart", method = "GET", scenario = "cart",
+                    response = "mocks/response3.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/scenario/cart", method = "POST", scenario = "cart", newState = "filled",
+                    response = "mocks/response4.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/scenario/cart", method = "GET", scenario = "cart", state = "filled",
+                    response = "mocks/response5.json")
+    })
+    public void testScenarios() throws Exception {
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/flaky").startsWith("HTTP/1.1 503"));
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/flaky").endsWith(expected("mocks/response2.json")));
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/flaky").endsWith(expected("mocks/response2.json")));
+
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/cart").endsWith(expected("mocks/response3.json")));
+        Assert.assertTrue(exchange(10000, "POST", "/scenario/cart").endsWith(expected("mocks/response4.json")));
+        Assert.assertEquals("filled", mockServer.getScenarioState("cart"));
+        // adding a route keeps states and sequence positions
+        mockServer.updateMockHttpServerResponse(mockServer.prepareResponse("/scenario/other", "application/json", "mocks/response1.json", 200));
+        Assert.assertEquals("filled", mockServer.getScenarioState("cart"));
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/flaky").endsWith(expected("mocks/response2.json")));
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/cart").endsWith(expected("mocks/response5.json")));
+        // no POST answers in state filled
+        Assert.assertTrue(exchange(10000, "POST", "/scenario/cart").startsWith("HTTP/1.1 500"));
+        mockServer.resetScenarios();
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/flaky").startsWith("HTTP/1.1 503"));
+        Assert.assertTrue(exchange(10000, "GET", "/scenario/cart").endsWith(expected("mocks/response3.json")));
+
+        // concurrent clients share one sequence without losing or repeating a position
+        SimpleMockServer pooled = new SimpleMockServer(10011, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.THREAD_POOL, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> pages = new ArrayList<Future<String>>();
+            for (int i = 0; i < 100; i++) {
+                pages.add(executor.submit(() -> exchange(10011, "GET", "/scenario/pages")));
+            }
+            int first = 0;
+            for (Future<String> page : pages) {
+                first += page.get().endsWith(expected("mocks/response1.json")) ? 1 : 0;
+            }
+            Assert.assertEquals(50, first);
+        } finally {
+            executor.shutdownNow();
+            pooled.stopServer();
+        }
+        Assert.assertNull(pooled.getScenarioState("cart"));
+        pooled.resetScenarios();
+    }
+
+
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(url = "/fault/reset", response = "mocks/response1.json", faults = "reset"),
+            @SimpleMockServer.MockResponse(url = "/fault/truncate", response = "mocks/response2.json", faults = "truncate(10)"),
+            @SimpleMockServer.MockResponse(url = "/fault/trickle", response = "mocks/response1.json", faults = "trickle(40, 20)"),
+            @SimpleMockServer.MockResponse(url = "/fault/hang", response = "mocks/response1.json", faults = "no-response(300)"),
+            @SimpleMockServer.MockResponse(url = "/fault/length", response = "mocks/response2.json", faults = "wrong-length(5)"),
+            @SimpleMockServer.MockResponse(url = "/fault/sometimes", response = "mocks/response1.json", faults = "50% reset")
+    })
+    public void testFaultInjection() throws Exception {
+        SimpleMockServer nioServer = new SimpleMockServer(10012, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.NIO);
+        try {
+            for (SimpleMockServer server : new SimpleMockServer[]{mockServer, nioServer}) {
+                assertFaults(server, server == mockServer ? 10000 : 10012);
+            }
+        } finally {
+            nioServer.stopServer();
+        }
+    }
+
+
+    private void assertFaults(SimpleMockServer server, int port) throws Exception {
+        try {
+            download(port, "/fault/reset");
+            Assert.fail("connection not reset");
+        } catch (SocketException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("reset"));
+        }
+
+        byte[] full = SimpleMockServer.ResponseCache.load("mocks/response2.json");
+        String truncated = new String(download(port, "/fault/truncate"), "ISO-8859-1");
+        Assert.assertTrue(truncated.contains("Content-Length: " + full.length + "\r\n"));
+        Assert.assertEquals(10, truncated.length() - truncated.indexOf("\r\n\r\n") - 4);
+
+        String wrong = new String(download(port, "/fault/length"), "ISO-8859-1");
+        Assert.assertTrue(wrong.contains("Content-Length: " + (full.length + 5) + "\r\n"));
+        Assert.assertEquals(full.length, wrong.length() - wrong.indexOf("\r\n\r\n") - 4);
+
+        // the head arrives 40 bytes every 20ms while other clients are served
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.currentTimeMillis();
+            Future<byte[]> trickled = executor.submit(() -> download(port, "/fault/trickle"));
+            Thread.sleep(20);
+            Assert.assertTrue(exchange(port, "GET", "/server/response2.json").startsWith("HTTP/1.1 200"));
+            String raw = new String(trickled.get(), "ISO-8859-1");
+            Assert.assertTrue(System.currentTimeMillis() - start >= (raw.indexOf("\r\n\r\n") / 40) * 20);
+            Assert.assertTrue(raw.startsWith("HTTP/1.1 200") && raw.endsWith(new String(SimpleMockServer.ResponseCache.load("mocks/response1.json"), "ISO-8859-1")));
+
+            start = System.currentTimeMillis();
+            Assert.assertEquals(0, download(port, "/fault/hang").length);
+            Assert.assertTrue(System.currentTimeMillis() - start >= 250);
+        } finally {
+            executor.shutdown();
+        }
+
+        int resets = 0;
+        for (int i = 0; i < 40; i++) {
+            try {
+                download(port, "/fault/sometimes");
+            } catch (SocketException e) {
+                resets++;
+            }
+        }
+        Assert.assertTrue(resets > 5 && resets < 35);
+
+        SimpleMockServer.ServerMetrics metrics = server.getMetrics();
+        Assert.assertEquals(1 + resets, metrics.getInjectedFaults(SimpleMockServer.FaultType.RESET));
+        Assert.assertEquals(1, metrics.getInjectedFaults(SimpleMockServer.FaultType.TRUNCATE));
+        Assert.assertEquals(1, metrics.getInjectedFaults(SimpleMockServer.FaultType.TRICKLE));
+        Assert.assertEquals(1, metrics.getInjectedFaults(SimpleMockServer.FaultType.NO_RESPONSE));
+        Assert.assertEquals(1, metrics.getInjectedFaults(SimpleMockServer.FaultType.WRONG_LENGTH));
+        Assert.assertTrue(metrics.toJson().contains("\"faults\":{\"reset\":" + (1 + resets) + ","));
+    }
+
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(url = "/encoding/identity", response = "mocks/response3.json", compression = false)
+    })
+    public void testResponseCompression() throws Exception {
+        SimpleMockServer nioServer = new SimpleMockServer(10013, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.NIO);
+        try {
+            for (int port : new int[]{10000, 10013}) {
+                byte[] json = SimpleMockServer.ResponseCache.load("mocks/response2.json");
+                Assert.assertTrue(Arrays.equals(json, decode(download(port, "/server/response2.json", "Accept-Encoding: gzip, deflate\r\n"), "gzip")));
+                Assert.assertTrue(Arrays.equals(json, decode(download(port, "/server/response2.json", "Accept-Encoding: gzip;q=0, deflate\r\n"), "deflate")));
+                Assert.assertTrue(Arrays.equals(json, decode(download(port, "/server/response2.json", "Accept-Encoding: *\r\n"), "gzip")));
+                Assert.assertTrue(Arrays.equals(json, decode(download(port, "/server/response2.json", "Accept-Encoding: br\r\n"), null)));
+                Assert.assertTrue(Arrays.equals(json, decode(download(port, "/server/response2.json"), null)));
+
+                String identity = new String(download(port, "/encoding/identity", "Accept-Encoding: gzip\r\n"), "ISO-8859-1");
+                Assert.assertFalse(identity.contains("Content-Encoding") || identity.contains("Vary"));
+            }
+        } finally {
+            nioServer.stopServer();
+        }
+    }
+
+
+    // the body of a raw response, checking its Content-Encoding, Vary and Content-Length
+    private static byte[] decode(byte[] response, String encoding) throws IOException {
+        String raw = new String(response, "ISO-8859-1");
+        int bodyStart = raw.indexOf("\r\n\r\n") + 4;
+        String head = raw.substring(0, bodyStart);
+        Assert.assertTrue(head, head.startsWith("HTTP/1.1 200") && head.contains("Vary: Accept-Encoding\r\n"));
+        Assert.assertEquals(encoding != null, head.contains("Content-Encoding: " + encoding + "\r\n"));
+        Assert.assertTrue(head.contains("Content-Length: " + (response.length - bodyStart) + "\r\n"));
+        InputStream body = new ByteArrayInputStream(response, bodyStart, response.length - bodyStart);
+        if ("gzip".equals(encoding)) {
+            body = new java.util.zip.GZIPInputStream(body);
+        } else if ("deflate".equals(encoding)) {
+            body = new java.util.zip.InflaterInputStream(body);
+        }
+        return readAll(body);
+    }
+
+    @Test
+    public void testConditionalAndRangeRequests() throws Exception {
+        File file = File.createTempFile("ranges", ".bin");
+        file.deleteOnExit();
+        byte[] mapped = new byte[100 * 1024];
+        new java.util.Random(2).nextBytes(mapped);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(mapped);
+        }
+        SimpleMockServer nioServer = new SimpleMockServer(10014, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.NIO);
+        try {
+            for (SimpleMockServer server : new SimpleMockServer[]{mockServer, nioServer}) {
+                server.updateMockHttpServerResponse(server.prepareResponse("/ranges", "application/octet-stream", "file:" + file.getPath(), 200));
+            }
+            byte[] json = SimpleMockServer.ResponseCache.load("mocks/response2.json");
+            for (int port : new int[]{10000, 10014}) {
+                String full = new String(download(port, "/server/response2.json"), "ISO-8859-1");
+                String etag = header(full, "ETag");
+                String lastModified = header(full, "Last-Modified");
+                Assert.assertTrue(full.contains("Accept-Ranges: bytes\r\n"));
+
+                String notModified = new String(download(port, "/server/response2.json", "If-None-Match: \"x\", " + etag + "\r\n"), "ISO-8859-1");
+                Assert.assertTrue(notModified.startsWith("HTTP/1.1 304") && notModified.endsWith("\r\n\r\n"));
+                Assert.assertEquals(etag, header(notModified, "ETag"));
+                Assert.assertTrue(new String(download(port, "/server/response2.json", "If-Modified-Since: " + lastModified + "\r\n"), "ISO-8859-1").startsWith("HTTP/1.1 304"));
+                Assert.assertTrue(new String(download(port, "/server/response2.json", "If-None-Match: \"x\"\r\nIf-Modified-Since: " + lastModified + "\r\n"), "ISO-8859-1").startsWith("HTTP/1.1 200"));
+                Assert.assertTrue(new String(download(port, "/server/response2.json", "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT\r\n"), "ISO-8859-1").startsWith("HTTP/1.1 200"));
+                // a compressed variant has a tag of its own
+                String gzip = new String(download(port, "/server/response2.json", "Accept-Encoding: gzip\r\n"), "ISO-8859-1");
+                Assert.assertFalse(etag.equals(header(gzip, "ETag")));
+
+                assertRange(port, "/server/response2.json", "bytes=10-19", json, 10, 20);
+                assertRange(port, "/server/response2.json", "bytes=-5", json, json.length - 5, json.length);
+                assertRange(port, "/ranges", "bytes=50000-", mapped, 50000, mapped.length);
+                String both = new String(download(port, "/ranges", "Range: bytes=0-99, 70000-70099\r\n"), "ISO-8859-1");
+                Assert.assertTrue(both.startsWith("HTTP/1.1 206") && header(both, "Content-Type").startsWith("multipart/byteranges; boundary="));
+                String raw = new String(mapped, "ISO-8859-1");
+                Assert.assertTrue(both.contains("Content-Range: bytes 0-99/" + mapped.length + "\r\n\r\n" + raw.substring(0, 100) + "\r\n--"));
+                Assert.assertTrue(both.contains("Content-Range: bytes 70000-70099/" + mapped.length + "\r\n\r\n" + raw.substring(70000, 70100) + "\r\n--"));
+                Assert.assertEquals(both.length(), both.indexOf("\r\n\r\n") + 4 + Integer.parseInt(header(both, "Content-Length")));
+
+                String unsatisfiable = new String(download(port, "/ranges", "Range: bytes=200000-\r\n"), "ISO-8859-1");
+                Assert.assertTrue(unsatisfiable.startsWith("HTTP/1.1 416") && unsatisfiable.contains("Content-Range: bytes */" + mapped.length));
+                // a stale If-Range gets the whole body
+                String stale = new String(download(port, "/ranges", "Range: bytes=0-9\r\nIf-Range: \"stale\"\r\n"), "ISO-8859-1");
+                Assert.assertTrue(stale.startsWith("HTTP/1.1 200") && stale.contains("Content-Length: " + mapped.length));
+            }
+        } finally {
+            nioServer.stopServer();
+        }
+    }
+
+
+    private void assertRange(int port, String url, String range, byte[] body, int from, int to) throws Exception {
+        byte[] response = download(port, url, "Range: " + range + "\r\n");
+        String head = new String(response, 0, Math.min(response.length, 1024), "ISO-8859-1");
+        head = head.substring(0, head.indexOf("\r\n\r\n") + 4);
+        Assert.assertTrue(head, head.startsWith("HTTP/1.1 206"));
+        Assert.assertEquals("bytes " + from + "-" + (to - 1) + "/" + body.length, header(head, "Content-Range"));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(body, from, to), Arrays.copyOfRange(response, head.length(), response.length)));
+    }
+
+
+    private static String header(String response, String name) {
+        int start = response.indexOf("\r\n" + name + ": ") + name.length() + 4;
+        return response.substring(start, response.indexOf("\r\n", start));
+    }
+
+    private String postBody(String body, String headers) throws Exception {
+        return post(10000, "/match/orders", "Content-Length: " + body.length() + headers, body.getBytes(), body.length());
+    }
+
+
+    // writes the body in pieces so it arrives over several reads
+    private String post(int port, String url, String framing, byte[] body, int piece) throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST " + url + " HTTP/1.1\r\nConnection: close\r\n" + framing + "\r\n\r\n").getBytes());
+            for (int i = 0; i < body.length; i += piece) {
+                out.write(body, i, Math.min(piece, body.length - i));
+                out.flush();
+            }
+            String response = readStream(socket.getInputStream());
+            Assert.assertTrue(response.startsWith("HTTP/1.1 200"));
+            return response;
+        }
+    }
+
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : java.security.MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+
+    private String exchange(int port, String method, String url) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write((method + " " + url + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+            return readStream(socket.getInputStream());
+        }
+    }
+
+
+    // raw response bytes, head included
+    private byte[] download(int port, String url) throws IOException {
+        return download(port, url, "");
+    }
+
+
+    private byte[] download(int port, String url, String headers) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(("GET " + url + " HTTP/1.1\r\nConnection: close\r\n" + headers + "\r\n").getBytes());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = socket.getInputStream().read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+
+    private String expected(String file) {
+        return readStream(getClass().getClassLoader().getResourceAsStream(file));
+    }
+
+
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(
+                    url = "/routes/users/{id}",
+                    response = "mocks/response2.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/routes/users/{id}",
+                    method = "POST",
+                    statusCode = 201,
+                    response = "mocks/response7.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/routes/users/42?view=full",
+                    response = "mocks/response10.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/routes/files/**",
+                    response = "mocks/response8.json")
+    })
+    public void testRouteTemplates() throws Exception {
+        Assert.assertTrue(exchange(10000, "GET", "/routes/users/1").endsWith(expected("mocks/response2.json")));
+        Assert.assertTrue(exchange(10000, "GET", "/routes/users/2?x=y").endsWith(expected("mocks/response2.json")));
+        Assert.assertTrue(exchange(10000, "POST", "/routes/users/2").startsWith("HTTP/1.1 201"));
+        Assert.assertTrue(exchange(10000, "GET", "/routes/users/42?a=b&view=full").endsWith(expected("mocks/response10.json")));
+        Assert.assertTrue(exchange(10000, "GET", "/routes/users/42?view=short").endsWith(expected("mocks/response2.json")));
+        Assert.assertTrue(exchange(10000, "GET", "/routes/files/a/b/c.txt").endsWith(expected("mocks/response8.json")));
+        Assert.assertTrue(exchange(10000, "GET", "/routes/users/1/friends").startsWith("HTTP/1.1 500"));
+    }
+
+
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(
+                    url = "/delay/slow",
+                    delay = "uniform(500, 600)",
+                    response = "mocks/response2.json"),
+            @SimpleMockServer.MockResponse(
+                    url = "/delay/fast",
+                    delay = "0",
+                    response = "mocks/response2.json")
+    })
+    public void testDelayDoesNotBlockOtherClients() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        long start = System.currentTimeMillis();
+        Future<String> slow = executor.submit(() -> exchange(10000, "GET", "/delay/slow"));
+        Thread.sleep(50);
+        Assert.assertTrue(exchange(10000, "GET", "/delay/fast").startsWith("HTTP/1.1 200"));
+        Assert.assertFalse(slow.isDone());
+        Assert.assertTrue(slow.get().startsWith("HTTP/1.1 200"));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 500);
+        executor.shutdown();
+    }
+
+
+    @Test
+    public void testDelayDistributions() {
+        for (int i = 0; i < 1000; i++) {
+            long uniform = SimpleMockServer.ResponseDelay.parse("uniform(10, 20)").nextMillis();
+            Assert.assertTrue(uniform >= 10 && uniform <= 20);
+            long percentile = SimpleMockServer.ResponseDelay.parse("percentiles(50:100, 99:200, 100:1000)").nextMillis();
+            Assert.assertTrue(percentile >= 100 && percentile <= 1000);
+            Assert.assertTrue(SimpleMockServer.ResponseDelay.parse("normal(5, 50)").nextMillis() >= 0);
+        }
+        Assert.assertEquals(250, SimpleMockServer.ResponseDelay.parse("250ms").nextMillis());
+    }
+
+
+    @Test
+    public void testRequestJournal() throws Exception {
+        SimpleMockServer.RequestJournal journal = mockServer.getJournal();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> arrived = executor.submit(() -> journal.awaitRoute("/server/response1.json", 3, 5, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            exchange(10000, "GET", "/server/response1.json");
+        }
+        exchange(10000, "GET", "/unknown");
+        Assert.assertTrue(arrived.get());
+        Assert.assertEquals(3, journal.countByRoute("/server/response1.json"));
+        Assert.assertEquals(3, journal.findByRoute("/server/response1.json").size());
+        Assert.assertEquals(500, journal.find(e -> e.getUrl().equals("/unknown")).get(0).getStatus());
+        executor.shutdown();
+
+        mockServer.configureJournal(2, 0, SimpleMockServer.OverflowPolicy.DROP_NEWEST, null);
+        for (int i = 2; i <= 4; i++) {
+            exchange(10000, "GET", "/server/response" + i + ".json");
+        }
+        List<SimpleMockServer.JournalEntry> entries = mockServer.getJournal().getEntries();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("/server/response3.json", entries.get(1).getUrl());
+        Assert.assertEquals(1, mockServer.getJournal().getDropped());
+        Assert.assertEquals(3, mockServer.getJournal().countByMethod("GET"));
+
+        mockServer.configureJournal(2, 0, SimpleMockServer.OverflowPolicy.DROP_OLDEST, null);
+        for (int i = 2; i <= 4; i++) {
+            exchange(10000, "GET", "/server/response" + i + ".json");
+        }
+        Assert.assertTrue(mockServer.getJournal().findByRoute("/server/response2.json").isEmpty());
+        Assert.assertEquals(1, mockServer.getJournal().findByRoute("/server/response4.json").size());
+        entries = mockServer.getJournal().findByMethod("GET");
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("/server/response3.json", entries.get(0).getUrl());
+    }
+
+
+    @Test
+    public void testRouteIndex() throws Exception {
+        InputStream index = getClass().getClassLoader().getResourceAsStream(SimpleMockServer.ROUTE_INDEX);
+        Assert.assertNotNull(index);
+        long indexed = new BufferedReader(new InputStreamReader(index, "UTF-8")).lines().count();
+        int scanned = mockServer.getMethodsWithinPackage("net.mrkzea.mockserver").stream()
+                .mapToInt(m -> m.getAnnotation(SimpleMockServer.MockServerConfig.class).value().length)
+                .sum();
+        Assert.assertEquals(scanned, indexed);
+
+        // an index left behind by an incremental compile that only saw one class is not trusted
+        File partial = File.createTempFile("routes", ".idx");
+        partial.deleteOnExit();
+        try (InputStream full = getClass().getClassLoader().getResourceAsStream(SimpleMockServer.ROUTE_INDEX);
+             PrintWriter out = new PrintWriter(partial, "UTF-8")) {
+            new BufferedReader(new InputStreamReader(full, "UTF-8")).lines()
+                    .filter(line -> line.startsWith("net.mrkzea.mockserver.tests.")).forEach(out::println);
+        }
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new ClassLoader(original) {
+            @Override
+            public java.util.Enumeration<java.net.URL> getResources(String name) throws IOException {
+                return SimpleMockServer.ROUTE_INDEX.equals(name)
+                        ? java.util.Collections.enumeration(Arrays.asList(partial.toURI().toURL()))
+                        : super.getResources(name);
+            }
+        });
+        SimpleMockServer stale;
+        try {
+            stale = new SimpleMockServer(10015, 0, "net.mrkzea.mockserver");
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+        try {
+            Assert.assertEquals(mockServer.getMockHttpServerResponses().keySet(), stale.getMockHttpServerResponses().keySet());
+        } finally {
+            stale.stopServer();
+        }
+    }
+
+
+    @Test
+    public void testResponseCache() throws Exception {
+        SimpleMockServer.ResponseCache cache = mockServer.getResponseCache();
+        long budget = cache.getBudget();
+        Assert.assertEquals(0, cache.getEntries());
+        byte[] body = SimpleMockServer.ResponseCache.load("mocks/response1.json");
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(exchange(10000, "GET", "/server/response1.json").contains("Content-Length: " + body.length));
+        }
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(2, cache.getHits());
+
+        exchange(10000, "GET", "/server/response2.json");
+        cache.setBudget(cache.getSize() - 1);
+        Assert.assertEquals(1, cache.getEntries());
+        Assert.assertEquals(1, cache.getEvictions());
+        exchange(10000, "GET", "/server/response2.json");
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertTrue(cache.getSize() <= cache.getBudget());
+
+        // least recently used goes first
+        cache.setBudget(budget);
+        exchange(10000, "GET", "/server/response1.json");
+        exchange(10000, "GET", "/server/response2.json");
+        exchange(10000, "GET", "/server/response1.json");
+        cache.setBudget(cache.getSize() - 1);
+        Assert.assertEquals(1, cache.getEntries());
+        exchange(10000, "GET", "/server/response1.json");
+        Assert.assertEquals(6, cache.getHits());
+
+        // bodies over the budget are sent without being compressed on every hit
+        cache.setBudget(100);
+        String json = new String(SimpleMockServer.ResponseCache.load("mocks/response2.json"), "ISO-8859-1");
+        for (int i = 0; i < 2; i++) {
+            String raw = new String(download(10000, "/server/response2.json", "Accept-Encoding: gzip\r\n"), "ISO-8859-1");
+            Assert.assertTrue(raw.endsWith("\r\n\r\n" + json) && !raw.contains("Content-Encoding"));
+        }
+        Assert.assertEquals(0, cache.getEntries());
+    }
+
+
+    @Test
+    public void testFileBackedResponses() throws Exception {
+        File file = File.createTempFile("download", ".bin");
+        file.deleteOnExit();
+        byte[] body = new byte[3 * 1024 * 1024 + 7];
+        new java.util.Random(1).nextBytes(body);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(body);
+        }
+        SimpleMockServer nioServer = new SimpleMockServer(10004, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.NIO);
+        try {
+            for (SimpleMockServer server : new SimpleMockServer[]{mockServer, nioServer}) {
+                server.updateMockHttpServerResponse(server.prepareResponse("/download", "application/octet-stream", "file:" + file.getPath(), 200));
+            }
+            try (InputStream in = mockServer.prepareResponse("/download", "application/octet-stream", "file:" + file.getPath(), 200).openResponseContent()) {
+                Assert.assertTrue(Arrays.equals(body, readAll(in)));
+            }
+            for (int port : new int[]{10000, 10004}) {
+                byte[] response = download(port, "/download");
+                String head = new String(response, 0, 512, "ISO-8859-1");
+                Assert.assertTrue(head.contains("Content-Length: " + body.length));
+                int headLength = head.indexOf("\r\n\r\n") + 4;
+                Assert.assertTrue(Arrays.equals(body, Arrays.copyOfRange(response, headLength, response.length)));
+            }
+        } finally {
+            nioServer.stopServer();
+        }
+    }
+
+
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(
+                    url = "/stream/chunks",
+                    response = "mocks/response2.json",
+                    chunkSize = 64,
+                    chunkDelay = 30),
+            @SimpleMockServer.MockResponse(
+                    url = "/stream/throttled",
+                    response = "mocks/response3.json",
+                    chunkSize = 512,
+                    bytesPerSecond = 10000)
+    })
+    public void testStreamingResponses() throws Exception {
+        SimpleMockServer nioServer = new SimpleMockServer(10005, 0, "net.mrkzea.mockserver", SimpleMockServer.ExecutionMode.NIO);
+        try {
+            for (int port : new int[]{10000, 10005}) {
+                assertStreamed(port, "/stream/chunks", "mocks/response2.json", 6, 150);
+                assertStreamed(port, "/stream/throttled", "mocks/response3.json", 6, 250);
+            }
+        } finally {
+            nioServer.stopServer();
+        }
+    }
+
+
+    private void assertStreamed(int port, String url, String file, int chunks, long minMillis) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        long start = System.currentTimeMillis();
+        Future<byte[]> streamed = executor.submit(() -> download(port, url));
+        Thread.sleep(20);
+        // the stream is paced on the timer, other clients are still served
+        Assert.assertTrue(exchange(port, "GET", "/server/response2.json").startsWith("HTTP/1.1 200"));
+        byte[] response = streamed.get();
+        Assert.assertTrue(System.currentTimeMillis() - start >= minMillis);
+        executor.shutdown();
+
+        String raw = new String(response, "ISO-8859-1");
+        Assert.assertTrue(raw.contains("Transfer-Encoding: chunked"));
+        Assert.assertFalse(raw.contains("Content-Length"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int position = raw.indexOf("\r\n\r\n") + 4;
+        int count = 0;
+        while (true) {
+            int lineEnd = raw.indexOf("\r\n", position);
+            int size = Integer.parseInt(raw.substring(position, lineEnd), 16);
+            if (size == 0) {
+                break;
+            }
+            body.write(response, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+            count++;
+        }
+        Assert.assertEquals(chunks, count);
+        Assert.assertTrue(Arrays.equals(SimpleMockServer.ResponseCache.load(file), body.toByteArray()));
+    }
+
+
     @Test
     public void testAnnotations() {
         Set<Method> methodsWithinPackage = mockServer.getMethodsWithinPackage("net.mrkzea.mockserver");
@@ -2,8 +2,9 @@ package net.mrkzea.mockserver.tests.controller;
 
 
 import net.mrkzea.mockserver.SimpleMockServer;
-import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 
 public class ExampleControllerTests {
@@ -11,21 +12,16 @@ public class ExampleControllerTests {
 
     ExampleController controller;
 
-    SimpleMockServer mockServer;
+    // one server for all tests in the JVM, each test only sees the routes of its own @MockServerConfig
+    @Rule
+    public SimpleMockServer.MockServerRule mockServer = new SimpleMockServer.MockServerRule(12345);
 
     @Before
     public void setUp(){
-        mockServer = new SimpleMockServer(12345, 20, "net.mrkzea.mockserver");
         controller = new ExampleController("http://localhost:12345");
     }
 
 
-    @After
-    public void clean(){
-        mockServer.stopServer();
-    }
-
-
     @Test
     @SimpleMockServer.MockServerConfig({
             @SimpleMockServer.MockResponse(
@@ -38,4 +34,15 @@ public class ExampleControllerTests {
     }
 
 
+    @Test
+    @SimpleMockServer.MockServerConfig({
+            @SimpleMockServer.MockResponse(
+                    url = "/api/path/which/you/are/testing/response2.json",
+                    response = "mocks/response2.json")})
+    public void testRoutesOfOtherTestsAreNotVisible(){
+        Assert.assertEquals(1, mockServer.getServer().getMockHttpServerResponses().size());
+        Assert.assertNotNull(mockServer.getServer().getMockHttpServerResponses().get("/api/path/which/you/are/testing/response2.json"));
+    }
+
+
 }